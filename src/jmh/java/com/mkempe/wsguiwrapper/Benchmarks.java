@@ -0,0 +1,89 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Shared setup for the benchmarks. They run against the synthetic wsDisplay
+ * classes from the jmhStubs source set, whose jar is passed in by Gradle.
+ */
+final class Benchmarks {
+    static final String[] TARGETS = {"wsGUI/wsDisplayGUI", "wsGUI/IOServer", "modules/LedMatrix"};
+
+    private Benchmarks() {
+    }
+
+    static Path stubJar() {
+        String stubJar = System.getProperty("wsguiwrapper.stubJar");
+        if (stubJar == null)
+            throw new IllegalStateException("wsguiwrapper.stubJar isn't set, run through the Gradle jmh task");
+        return Paths.get(stubJar);
+    }
+
+    static byte[] readStubClass(String className) throws IOException {
+        try (ZipFile jar = new ZipFile(stubJar().toFile())) {
+            ZipEntry entry = jar.getEntry(className + ".class");
+            if (entry == null)
+                throw new IOException("Class not found in stub jar: " + className);
+            try (InputStream in = jar.getInputStream(entry)) {
+                return Patcher.readAll(in);
+            }
+        }
+    }
+
+    /**
+     * Writes a config with every option that affects patching set, and points
+     * Settings at it so nothing is written to the working directory.
+     */
+    static Path writeConfig(Path dir, boolean cacheEnabled) throws IOException {
+        Path config = dir.resolve("config.toml");
+        String toml = "[ui]\n" +
+                "text_color.r = 0xcc\ntext_color.g = 0xcc\ntext_color.b = 0xcc\ntext_color.a = 0xff\n" +
+                "matrix_color.r = 0xff\nmatrix_color.g = 0x7e\nmatrix_color.b = 0x00\n" +
+                "button_border_color.r = 0xcc\nbutton_border_color.g = 0xcc\nbutton_border_color.b = 0xcc\n" +
+                "add_modified_text = true\n" +
+                "\n[cache]\n" +
+                "enabled = " + cacheEnabled + "\n" +
+                "directory = \"" + dir.resolve("transform-cache").toString().replace("\\", "\\\\") + "\"\n";
+        Files.write(config, toml.getBytes(StandardCharsets.UTF_8));
+        System.setProperty("wsguiwrapper.config", config.toString());
+        return config;
+    }
+}
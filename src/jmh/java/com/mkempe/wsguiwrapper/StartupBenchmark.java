@@ -0,0 +1,108 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from Main.main to the first rendered frame of the stub display, in a
+ * fresh JVM for every measurement. Runs without the agent, so this covers
+ * the fallback loader path, with and without a populated transform cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+    @Param({"false", "true"})
+    public boolean cacheEnabled;
+
+    private URL[] classpath;
+    private ClassLoader parent;
+
+    @Setup
+    public void setup() throws Exception {
+        Benchmarks.writeConfig(Files.createTempDirectory("wsguiwrapper-jmh"), cacheEnabled);
+
+        // Stub jar first, so it's found instead of a real wsDisplay.jar
+        List<URL> urls = new ArrayList<>();
+        urls.add(Benchmarks.stubJar().toUri().toURL());
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!entry.isEmpty() && !entry.endsWith("wsDisplay.jar"))
+                urls.add(Paths.get(entry).toUri().toURL());
+        }
+        classpath = urls.toArray(new URL[0]);
+        // Platform loader, so the wrapper is loaded fresh and not shared with JMH
+        parent = ClassLoader.getSystemClassLoader().getParent();
+
+        if (cacheEnabled)
+            primeCache();
+    }
+
+    /**
+     * Fills the transform cache from a throwaway class loader, without touching Swing.
+     */
+    private void primeCache() throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(classpath, parent)) {
+            Class<?> patcher = loader.loadClass(Patcher.class.getName());
+            for (String className : Benchmarks.TARGETS) {
+                patcher.getMethod("patch", String.class, byte[].class)
+                        .invoke(null, className, Benchmarks.readStubClass(className));
+            }
+        }
+    }
+
+    @Benchmark
+    public void firstFrame() throws IOException, ReflectiveOperationException {
+        try (URLClassLoader loader = new URLClassLoader(classpath, parent)) {
+            Thread.currentThread().setContextClassLoader(loader);
+            loader.loadClass(Main.class.getName())
+                    .getMethod("main", String[].class)
+                    .invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package modules;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Stand-in for a wsDisplay seven segment display, drawing its segments as
+ * polygons like the original.
+ */
+public class SegmentDisplayModule extends JPanel {
+    // Segments a to g lit for the digits 0 to 9
+    private static final int[] DIGITS = {0x3f, 0x06, 0x5b, 0x4f, 0x66, 0x6d, 0x7d, 0x07, 0x7f, 0x6f};
+
+    private int value;
+
+    public SegmentDisplayModule() {
+        setPreferredSize(new Dimension(40, 60));
+    }
+
+    public void setValue(int value) {
+        this.value = value;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        int lit = DIGITS[Math.floorMod(value, 10)];
+        for (int segment = 0; segment < 7; segment++) {
+            Polygon polygon = segment(segment);
+            g.setColor((lit & (1 << segment)) != 0 ? Color.RED : new Color(60, 0, 0));
+            g.fillPolygon(polygon.xpoints, polygon.ypoints, polygon.npoints);
+        }
+        g.fillOval(33, 52, 4, 4);
+    }
+
+    private static Polygon segment(int segment) {
+        int[][] origins = {{8, 5}, {29, 8}, {29, 32}, {8, 53}, {5, 32}, {5, 8}, {8, 29}};
+        int x = origins[segment][0], y = origins[segment][1];
+        if (segment == 0 || segment == 3 || segment == 6)
+            return new Polygon(new int[]{x, x + 3, x + 18, x + 21, x + 18, x + 3}, new int[]{y + 3, y, y, y + 3, y + 6, y + 6}, 6);
+        return new Polygon(new int[]{x + 3, x + 6, x + 6, x + 3, x, x}, new int[]{y, y + 3, y + 18, y + 21, y + 18, y + 3}, 6);
+    }
+}
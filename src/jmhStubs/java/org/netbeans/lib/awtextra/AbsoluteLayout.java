@@ -0,0 +1,108 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package org.netbeans.lib.awtextra;
+
+import java.awt.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the NetBeans absolute layout bundled with wsDisplay.
+ */
+public class AbsoluteLayout implements LayoutManager2 {
+    private final Map<Component, AbsoluteConstraints> constraints = new HashMap<>();
+
+    @Override
+    public void addLayoutComponent(Component comp, Object constraint) {
+        constraints.put(comp, (AbsoluteConstraints) constraint);
+    }
+
+    @Override
+    public void addLayoutComponent(String name, Component comp) {
+        throw new IllegalArgumentException("AbsoluteLayout requires AbsoluteConstraints");
+    }
+
+    @Override
+    public void removeLayoutComponent(Component comp) {
+        constraints.remove(comp);
+    }
+
+    @Override
+    public Dimension preferredLayoutSize(Container parent) {
+        int width = 0;
+        int height = 0;
+        for (Map.Entry<Component, AbsoluteConstraints> entry : constraints.entrySet()) {
+            Dimension size = size(entry.getKey(), entry.getValue());
+            width = Math.max(width, entry.getValue().x + size.width);
+            height = Math.max(height, entry.getValue().y + size.height);
+        }
+        return new Dimension(width, height);
+    }
+
+    @Override
+    public Dimension minimumLayoutSize(Container parent) {
+        return preferredLayoutSize(parent);
+    }
+
+    @Override
+    public Dimension maximumLayoutSize(Container target) {
+        return new Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void layoutContainer(Container parent) {
+        for (Map.Entry<Component, AbsoluteConstraints> entry : constraints.entrySet()) {
+            Dimension size = size(entry.getKey(), entry.getValue());
+            entry.getKey().setBounds(entry.getValue().x, entry.getValue().y, size.width, size.height);
+        }
+    }
+
+    @Override
+    public float getLayoutAlignmentX(Container target) {
+        return 0;
+    }
+
+    @Override
+    public float getLayoutAlignmentY(Container target) {
+        return 0;
+    }
+
+    @Override
+    public void invalidateLayout(Container target) {
+    }
+
+    private static Dimension size(Component component, AbsoluteConstraints constraint) {
+        Dimension preferred = component.getPreferredSize();
+        return new Dimension(constraint.width < 0 ? preferred.width : constraint.width,
+                constraint.height < 0 ? preferred.height : constraint.height);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package wsGUI;
+
+import modules.LedMatrix;
+import modules.PushButtonArrayModule;
+import org.netbeans.lib.awtextra.AbsoluteConstraints;
+import org.netbeans.lib.awtextra.AbsoluteLayout;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Stand-in for the wsDisplay main window. Shaped like the NetBeans generated
+ * original so the adapters find the same instructions, but renders into an
+ * image instead of a window so it runs headless.
+ */
+public class wsDisplayGUI {
+    private final JPanel contentPane = new JPanel();
+
+    private PushButtonArrayModule pushButtonArrayOption1;
+    private PushButtonArrayModule pushButtonArrayOption2;
+    private PushButtonArrayModule pushButtonArrayOnOff;
+    private LedMatrix ledMatrix1;
+    private JLabel jLabel1;
+    private JLabel jLabel2;
+    private JLabel jLabel3;
+    private JLabel background;
+
+    public wsDisplayGUI() {
+        initComponents();
+        String host = "localhost";
+        jLabel2.setText(new StringBuilder().append("Host: ").append(host).toString());
+    }
+
+    public Container getContentPane() {
+        return contentPane;
+    }
+
+    public void pack() {
+        contentPane.setSize(contentPane.getPreferredSize());
+        contentPane.doLayout();
+    }
+
+    private void initComponents() {
+        pushButtonArrayOption1 = new PushButtonArrayModule();
+        pushButtonArrayOption2 = new PushButtonArrayModule();
+        pushButtonArrayOnOff = new PushButtonArrayModule();
+        ledMatrix1 = new LedMatrix();
+        jLabel1 = new JLabel();
+        jLabel2 = new JLabel();
+        jLabel3 = new JLabel();
+        background = new JLabel();
+
+        getContentPane().setLayout(new AbsoluteLayout());
+
+        getContentPane().add(pushButtonArrayOption1, new AbsoluteConstraints(20, 300, -1, -1));
+        getContentPane().add(pushButtonArrayOption2, new AbsoluteConstraints(20, 350, -1, -1));
+        getContentPane().add(pushButtonArrayOnOff, new AbsoluteConstraints(20, 400, -1, -1));
+        getContentPane().add(ledMatrix1, new AbsoluteConstraints(20, 20, -1, -1));
+
+        jLabel1.setText("Options");
+        getContentPane().add(jLabel1, new AbsoluteConstraints(20, 280, -1, -1));
+        getContentPane().add(jLabel2, new AbsoluteConstraints(20, 450, -1, -1));
+        jLabel3.setText("On/Off");
+        getContentPane().add(jLabel3, new AbsoluteConstraints(20, 380, -1, -1));
+
+        background.setIcon(new ImageIcon(getClass().getResource("/wsGUI/background.png")));
+        getContentPane().add(background, new AbsoluteConstraints(0, 0, 640, 520));
+        // Branches get a stack map frame, so the JVM checks the patches above left the stack as they found it
+        if (background.getIcon() == null)
+            background.setText("wsDisplay");
+
+        pack();
+    }
+
+    /**
+     * Renders the window contents once, the headless equivalent of the first frame.
+     */
+    private void paintFirstFrame() {
+        Dimension size = contentPane.getSize();
+        BufferedImage frame = new BufferedImage(Math.max(1, size.width), Math.max(1, size.height), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = frame.createGraphics();
+        contentPane.paint(g);
+        g.dispose();
+    }
+
+    public static void main(String[] args) {
+        try {
+            EventQueue.invokeAndWait(() -> new wsDisplayGUI().paintFirstFrame());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -31,66 +31,185 @@
 
 package com.mkempe.wsguiwrapper;
 
-import com.mkempe.wsguiwrapper.asm.IOServerAdapter;
-import com.mkempe.wsguiwrapper.asm.LedMatrixAdapter;
-import com.mkempe.wsguiwrapper.asm.wsDisplayGuiAdapter;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
 
+import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Agent {
+    // Arguments Main --attach passes, followed by the path of the config file
+    static final String ATTACH_ARGS = "attach=";
+
     private static boolean hasLoaded;
+    private static volatile boolean inPlace;
+    private static Instrumentation instrumentation;
+    private static Transformer transformer;
 
     public static boolean loaded() {
         return hasLoaded;
     }
 
+    /**
+     * @return whether classes are patched after they were loaded, so patches
+     * can't add fields or methods. Set when attached to a running display.
+     */
+    public static boolean inPlace() {
+        return inPlace;
+    }
+
     public static void premain(String agentArgs, Instrumentation instrumentation) {
         agentmain(agentArgs, instrumentation);
     }
 
     public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+        if (agentArgs != null && agentArgs.startsWith(ATTACH_ARGS)) {
+            attach(agentArgs.substring(ATTACH_ARGS.length()), instrumentation);
+            return;
+        }
+
+        // Nothing to do when running against a wsDisplay.jar patched ahead of time
+        if (Patcher.isPrePatched(ClassLoader.getSystemClassLoader()))
+            return;
+
         if (!hasLoaded) {
+            StartupTimeline.Phase phase = StartupTimeline.begin("agent");
             hasLoaded = true;
-            instrumentation.addTransformer(new Transformer());
+            Agent.instrumentation = instrumentation;
+            install();
+            phase.end();
+        }
+
+    }
+
+    /**
+     * Loaded by Main --attach into a display that is already running. Its
+     * classes are patched in place, so running threads and open connections
+     * are kept. Methods that are running, like the loop serving a client,
+     * keep running the original code until they are called again.
+     */
+    private static void attach(String config, Instrumentation instrumentation) {
+        if (hasLoaded) {
+            System.err.println("Attach: wsGUIWrapper is already running in this JVM");
+            return;
+        }
+        if (Patcher.isPrePatched(ClassLoader.getSystemClassLoader())) {
+            System.err.println("Attach: wsDisplay.jar is already patched");
+            return;
+        }
+        if (!instrumentation.isRetransformClassesSupported()) {
+            System.err.println("Attach: This JVM can't retransform classes");
+            return;
+        }
+
+        // Settings read the config path once, when first used
+        System.setProperty("wsguiwrapper.config", config);
+        inPlace = true;
+        hasLoaded = true;
+        Agent.instrumentation = instrumentation;
+        if (!retransform())
+            return;
+
+        MetricsExporter.start(Settings.getInstance());
+        if (Settings.getInstance().hotReload())
+            ConfigWatcher.start(Settings.getInstance().getConfigPath());
+        System.out.println("Attach: Patched the running display");
+    }
+
+    /**
+     * Patches the already loaded target classes again using the current
+     * settings. Only method bodies change, so existing instances, running
+     * threads and open connections are unaffected.
+     *
+     * @return false if the agent isn't loaded or the JVM can't retransform classes
+     */
+    public static boolean retransform() {
+        if (instrumentation == null || !instrumentation.isRetransformClassesSupported())
+            return false;
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> cls : instrumentation.getAllLoadedClasses()) {
+            if (AdapterRegistry.get(cls.getName().replace('.', '/')) != null && instrumentation.isModifiableClass(cls))
+                classes.add(cls);
         }
 
+        install().expectAll();
+        try {
+            instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+            return true;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            System.err.println("Failed to retransform classes");
+            e.printStackTrace();
+            return false;
+        }
     }
 
-    private static final List<String> toTransform = Arrays.asList(
-            "wsGUI/wsDisplayGUI",
-            "wsGUI/IOServer",
-            "modules/LedMatrix");
+    private static synchronized Transformer install() {
+        if (transformer == null) {
+            transformer = new Transformer();
+            // Retransformable, so retransformClasses hands us the original class bytes
+            instrumentation.addTransformer(transformer, instrumentation.isRetransformClassesSupported());
+        }
+        return transformer;
+    }
+
+    private static synchronized void uninstall(Transformer done) {
+        // A retransform may have asked for more classes in the meantime, and
+        // without a list of the classes matching a family those may come any time
+        if (transformer == done && done.remaining.isEmpty() && done.listed) {
+            instrumentation.removeTransformer(done);
+            transformer = null;
+        }
+    }
 
     private static class Transformer implements ClassFileTransformer {
+        // Parent of the application class loader (extension loader on java 8,
+        // platform loader on 9+), wsDisplay classes are never loaded by it.
+        private final ClassLoader platformLoader = ClassLoader.getSystemClassLoader().getParent();
+        private final Set<String> remaining = ConcurrentHashMap.newKeySet();
+        // The classes matching a family were found in wsDisplay.jar
+        private volatile boolean listed;
+
+        private Transformer() {
+            expectAll();
+        }
+
+        private void expectAll() {
+            try {
+                remaining.addAll(Main.targets(ClassLoader.getSystemClassLoader()));
+                listed = true;
+            } catch (IOException | RuntimeException e) {
+                // wsDisplay.jar isn't on the class path, patch whatever comes by
+                remaining.addAll(AdapterRegistry.targets());
+                listed = !AdapterRegistry.hasFamilies();
+            }
+        }
+
         @Override
         public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
-            int index;
-            if ((index = toTransform.indexOf(className)) != -1) {
-                ClassReader cr = new ClassReader(classfileBuffer);
-                ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-
-                switch (index) {
-                    case 0:
-                        cr.accept(new wsDisplayGuiAdapter(cw), 0);
-                        break;
-                    case 1:
-                        cr.accept(new IOServerAdapter(cw), 0);
-                        break;
-                    case 2:
-                        cr.accept(new LedMatrixAdapter(cw), 0);
-                        break;
-                }
-
-                return cw.toByteArray();
-            }
+            // Bootstrap and platform classes can't be wsDisplay classes
+            if (loader == null || loader == platformLoader)
+                return null;
+            // Defines classes that are already patched
+            if (loader instanceof PatchedClassLoader)
+                return null;
+
+            if (AdapterRegistry.get(className) == null)
+                return null;
+
+            byte[] transformed = Patcher.patch(className, classfileBuffer);
+
+            // Stop getting called for every loaded class once all targets are patched
+            if (remaining.remove(className) && remaining.isEmpty())
+                uninstall(this);
 
-            return classfileBuffer;
+            return transformed;
         }
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Loads the agent into a wsDisplay JVM that is already running, through the
+ * Attach API. The API is used reflectively, on Java 8 it lives in tools.jar,
+ * which isn't on the class path by default.
+ */
+class Attacher {
+    private Attacher() {
+    }
+
+    /**
+     * @param pid process id of the JVM running wsDisplay
+     * @return false if the agent couldn't be loaded
+     */
+    static boolean attach(String pid) {
+        Path jar;
+        try {
+            jar = Paths.get(Agent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | RuntimeException e) {
+            System.err.println("Attach: Couldn't find the wsGUIWrapper jar");
+            return false;
+        }
+        if (!Files.isRegularFile(jar)) {
+            System.err.println("Attach: wsGUIWrapper has to run from its jar, not " + jar);
+            return false;
+        }
+
+        // The display may run in another directory, so it gets the config by absolute path
+        String config = Settings.getInstance().getConfigPath().toAbsolutePath().toString();
+        try {
+            Class<?> vmClass = virtualMachineClass();
+            Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+            try {
+                vmClass.getMethod("loadAgent", String.class, String.class)
+                        .invoke(vm, jar.toString(), Agent.ATTACH_ARGS + config);
+            } finally {
+                vmClass.getMethod("detach").invoke(vm);
+            }
+        } catch (ClassNotFoundException e) {
+            System.err.println("Attach: This JVM has no Attach API, run a JDK rather than a JRE");
+            return false;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            System.err.println("Attach: Couldn't attach to " + pid + ": " + cause);
+            return false;
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Attach: " + e);
+            return false;
+        }
+
+        System.out.println("Attach: Loaded wsGUIWrapper into " + pid + ", see its output for the result");
+        return true;
+    }
+
+    private static Class<?> virtualMachineClass() throws ClassNotFoundException {
+        String name = "com.sun.tools.attach.VirtualMachine";
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            File tools = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            if (!tools.isFile())
+                throw e;
+            try {
+                return Class.forName(name, true, new URLClassLoader(new URL[]{tools.toURI().toURL()}));
+            } catch (MalformedURLException malformed) {
+                throw e;
+            }
+        }
+    }
+}
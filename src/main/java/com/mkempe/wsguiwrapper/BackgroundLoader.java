@@ -0,0 +1,331 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the configured background image off the event dispatch thread. The
+ * window is laid out around the original background, so the image is scaled
+ * to that size and only the scaled copy is kept, both in memory and in the
+ * cache directory. A placeholder of the same size is shown until it's ready.
+ */
+public class BackgroundLoader {
+    private static final Color PLACEHOLDER = new Color(0x30, 0x30, 0x30);
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "wsGUIWrapper-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Last background loaded, only used on the executor thread
+    private static String lastKey;
+    private static BufferedImage lastImage;
+
+    private BackgroundLoader() {
+    }
+
+    /**
+     * Called by patched code in place of new ImageIcon(original), using the current settings.
+     */
+    public static ImageIcon load(URL original) {
+        return load(original, Settings.getInstance().getBackground());
+    }
+
+    /**
+     * Called by patched code in place of new ImageIcon(original).
+     *
+     * @param background path of the configured background, null to use the original
+     */
+    public static ImageIcon load(URL original, String background) {
+        if (background == null) {
+            if (Settings.getInstance().fastStartup())
+                return loadOriginal(original);
+            ImageIcon icon = new ImageIcon(original);
+            LiveComponents.registerBackground(icon);
+            return icon;
+        }
+
+        Dimension size = original != null ? imageSize(original) : null;
+        if (size == null)
+            size = imageSize(Paths.get(background));
+        if (size == null)
+            size = new Dimension(1, 1);
+
+        ImageIcon icon = new ImageIcon(placeholder(size), original != null ? original.toExternalForm() : null);
+        LiveComponents.registerBackground(icon);
+        loadInto(icon, background);
+        return icon;
+    }
+
+    /**
+     * Called by patched code in place of new ImageIcon(original) with fast
+     * startup on, the original is shown once it's loaded.
+     */
+    public static ImageIcon loadOriginal(URL original) {
+        Dimension size = original != null ? imageSize(original) : null;
+        if (size == null) {
+            ImageIcon icon = new ImageIcon(original);
+            LiveComponents.registerBackground(icon);
+            return icon;
+        }
+
+        ImageIcon icon = new ImageIcon(placeholder(size), original.toExternalForm());
+        LiveComponents.registerBackground(icon);
+        executor.execute(() -> {
+            StartupTimeline.Phase phase = StartupTimeline.begin("background");
+            BufferedImage image = null;
+            try {
+                BufferedImage source = ImageIO.read(original);
+                if (source != null)
+                    image = compatible(source, size.width, size.height);
+            } catch (IOException e) {
+                System.err.println("Background: Error reading " + original);
+            } finally {
+                phase.end(original.toExternalForm());
+            }
+
+            BufferedImage loaded = image;
+            SwingUtilities.invokeLater(() -> {
+                // Left to ImageIcon if ImageIO can't read it
+                icon.setImage(loaded != null ? loaded : new ImageIcon(original).getImage());
+                LiveComponents.repaintWindows();
+            });
+        });
+        return icon;
+    }
+
+    /**
+     * Replaces the image of the icon with the background once it's loaded,
+     * scaled to the current size of the icon.
+     */
+    static void loadInto(ImageIcon icon, String background) {
+        int width = icon.getIconWidth();
+        int height = icon.getIconHeight();
+        executor.execute(() -> {
+            StartupTimeline.Phase phase = StartupTimeline.begin("background");
+            BufferedImage image = loadScaled(Paths.get(background), width, height);
+            phase.end(background);
+            if (image != null) {
+                SwingUtilities.invokeLater(() -> {
+                    icon.setImage(image);
+                    LiveComponents.repaintWindows();
+                });
+            }
+        });
+    }
+
+    /**
+     * Puts the original image back in the icon, using the URL stored as its description.
+     */
+    static void restoreOriginal(ImageIcon icon) {
+        String description = icon.getDescription();
+        if (description == null)
+            return;
+
+        try {
+            icon.setImage(new ImageIcon(new URL(description)).getImage());
+        } catch (MalformedURLException e) {
+            System.err.println("Background: Couldn't restore original image");
+        }
+    }
+
+    private static BufferedImage loadScaled(Path background, int width, int height) {
+        Settings settings = Settings.getInstance();
+        Path dir = Paths.get(settings.getCacheDirectory());
+        Path cached = null;
+
+        try {
+            String key = key(background, width, height);
+            // Every display in this JVM shows the same image, only keep one copy
+            if (key.equals(lastKey))
+                return lastImage;
+
+            BufferedImage scaled = null;
+            if (settings.cacheEnabled()) {
+                cached = dir.resolve("background-" + key + ".png");
+                if (Files.exists(cached)) {
+                    BufferedImage image = ImageIO.read(cached.toFile());
+                    if (image != null)
+                        scaled = compatible(image, width, height);
+                }
+            }
+
+            if (scaled == null) {
+                BufferedImage source = ImageIO.read(background.toFile());
+                if (source == null) {
+                    System.err.println("Background: Unsupported image format " + background);
+                    return null;
+                }
+                scaled = compatible(source, width, height);
+
+                if (cached != null)
+                    write(dir, cached, scaled);
+            }
+
+            lastKey = key;
+            lastImage = scaled;
+            return scaled;
+        } catch (IOException e) {
+            System.err.println("Background: Error reading " + background);
+            return null;
+        }
+    }
+
+    /**
+     * Scales the image into one in the format of the screen, halving the size
+     * in steps first so large photos don't alias.
+     */
+    private static BufferedImage compatible(BufferedImage image, int width, int height) {
+        while (image.getWidth() / 2 >= width && image.getHeight() / 2 >= height) {
+            image = draw(image, new BufferedImage(image.getWidth() / 2, image.getHeight() / 2,
+                    image.getTransparency() == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB));
+        }
+
+        BufferedImage target;
+        if (GraphicsEnvironment.isHeadless()) {
+            target = new BufferedImage(width, height, image.getTransparency() == Transparency.OPAQUE ?
+                    BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        } else {
+            target = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration().createCompatibleImage(width, height, image.getTransparency());
+        }
+        return draw(image, target);
+    }
+
+    private static BufferedImage draw(BufferedImage source, BufferedImage target) {
+        Graphics2D g = target.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, target.getWidth(), target.getHeight(), null);
+        g.dispose();
+        return target;
+    }
+
+    private static BufferedImage placeholder(Dimension size) {
+        BufferedImage image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(PLACEHOLDER);
+        g.fillRect(0, 0, size.width, size.height);
+        g.dispose();
+        return image;
+    }
+
+    private static Dimension imageSize(URL url) {
+        try (InputStream in = url.openStream()) {
+            return imageSize(ImageIO.createImageInputStream(in));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Dimension imageSize(Path path) {
+        try {
+            return imageSize(ImageIO.createImageInputStream(path.toFile()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the size from the image header without decoding it.
+     */
+    private static Dimension imageSize(ImageInputStream in) throws IOException {
+        if (in == null)
+            return null;
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String key(Path background, int width, int height) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(background, BasicFileAttributes.class);
+        String key = background.toAbsolutePath() + "\n" + attributes.lastModifiedTime().toMillis() + "\n" +
+                attributes.size() + "\n" + width + "x" + height;
+        try {
+            return Patcher.hex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(Path dir, Path cached, BufferedImage image) {
+        try {
+            Files.createDirectories(dir);
+
+            // Only one background is in use at a time
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, "background-*.png")) {
+                for (Path path : stale)
+                    Files.deleteIfExists(path);
+            }
+
+            Path tmp = Files.createTempFile(dir, "background-", ".tmp");
+            ImageIO.write(image, "png", tmp.toFile());
+            try {
+                Files.move(tmp, cached, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Background: Error writing " + cached);
+        }
+    }
+}
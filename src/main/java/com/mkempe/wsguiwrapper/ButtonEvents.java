@@ -0,0 +1,134 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gets presses and releases on the push button arrays to clients without
+ * waiting for IOServer's next poll. Sleeps in the patched IOServer end as
+ * soon as a button changes, and the time from the press to the next write
+ * to a client is measured as press-to-wire latency.
+ * The hooks only use JDK types, wsDisplay classes may live in another class loader.
+ */
+public class ButtonEvents {
+    // A press nothing was written for this long after isn't measured
+    private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final AtomicBoolean installed = new AtomicBoolean();
+    // When the oldest press not yet followed by a write happened, 0 if none
+    private static final AtomicLong pressedAt = new AtomicLong();
+    private static final Object lock = new Object();
+    private static long events;
+
+    private ButtonEvents() {
+    }
+
+    /**
+     * Starts listening for button events, called with every registered window.
+     */
+    static void install() {
+        if (GraphicsEnvironment.isHeadless() || !installed.compareAndSet(false, true))
+            return;
+        Toolkit.getDefaultToolkit().addAWTEventListener(event -> {
+            int id = event.getID();
+            if ((id == MouseEvent.MOUSE_PRESSED || id == MouseEvent.MOUSE_RELEASED ||
+                    id == KeyEvent.KEY_PRESSED || id == KeyEvent.KEY_RELEASED) && isButton(((InputEvent) event).getComponent()))
+                changed();
+        }, AWTEvent.MOUSE_EVENT_MASK | AWTEvent.KEY_EVENT_MASK);
+    }
+
+    /**
+     * Called by the patched IOServer in place of Thread.sleep(millis). Returns
+     * early when a button is pressed or released, so a polling loop picks the
+     * change up right away.
+     */
+    public static void sleep(long millis) throws InterruptedException {
+        if (millis <= 0) {
+            Thread.sleep(millis);
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (lock) {
+            long seen = events;
+            long remaining;
+            while (events == seen && (remaining = deadline - System.nanoTime()) > 0)
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        }
+    }
+
+    /**
+     * Called by Metrics after every write to a client.
+     */
+    static void written() {
+        long pressed = pressedAt.get();
+        if (pressed != 0 && pressedAt.compareAndSet(pressed, 0)) {
+            long latency = System.nanoTime() - pressed;
+            if (latency < STALE_NANOS)
+                Metrics.pressToWire(latency);
+        }
+    }
+
+    private static void changed() {
+        if (Metrics.getConnectionsActive() > 0)
+            pressedAt.compareAndSet(0, System.nanoTime());
+        // Listeners see the event before the button does, wake sleepers once it has been handled
+        EventQueue.invokeLater(() -> {
+            synchronized (lock) {
+                events++;
+                lock.notifyAll();
+            }
+        });
+    }
+
+    private static boolean isButton(Component component) {
+        if (component == null)
+            return false;
+        for (Object window : LiveComponents.windows()) {
+            for (String name : LiveComponents.BUTTON_ARRAYS) {
+                Component buttons = LiveComponents.component(window, name);
+                if (buttons != null && (buttons == component ||
+                        (buttons instanceof Container && ((Container) buttons).isAncestorOf(component))))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
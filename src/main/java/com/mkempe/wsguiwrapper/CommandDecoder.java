@@ -0,0 +1,356 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
+import java.util.Arrays;
+
+/**
+ * Decodes the commands clients send to the patched IOServer without creating
+ * objects for messages seen before. Readers IOServer creates on a socket read
+ * lines straight from the bytes, and return the same String instance for a
+ * line that was read recently. Splitting such a line copies the parts from
+ * the last time instead of running the regex again. Only JDK types are used here, wsDisplay classes may live
+ * in another class loader.
+ */
+public class CommandDecoder {
+    // Longer lines are rare and not worth keeping
+    private static final int MAX_CACHED_LENGTH = 64;
+    private static final int CACHE_SIZE = 256;
+    private static final int BUFFER_SIZE = 8192;
+
+    // Written racily, entries are never changed so a reader sees either a whole entry or another one
+    private static final Split[] splits = new Split[CACHE_SIZE];
+
+    private CommandDecoder() {
+    }
+
+    /**
+     * Called by the patched IOServer in place of new InputStreamReader(in).
+     */
+    public static InputStreamReader inputStreamReader(InputStream in) {
+        return new StreamReader(in, Charset.defaultCharset());
+    }
+
+    /**
+     * Called by the patched IOServer in place of new InputStreamReader(in, charsetName).
+     */
+    public static InputStreamReader inputStreamReader(InputStream in, String charsetName) throws UnsupportedEncodingException {
+        if (charsetName == null)
+            throw new NullPointerException("charsetName");
+        try {
+            return new StreamReader(in, Charset.forName(charsetName));
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        }
+    }
+
+    /**
+     * Called by the patched IOServer in place of new InputStreamReader(in, charset).
+     */
+    public static InputStreamReader inputStreamReader(InputStream in, Charset charset) {
+        return new StreamReader(in, charset);
+    }
+
+    /**
+     * Called by the patched IOServer in place of new InputStreamReader(in, decoder).
+     * The decoder may not handle errors like the charset does, so it's kept.
+     */
+    public static InputStreamReader inputStreamReader(InputStream in, CharsetDecoder decoder) {
+        return new InputStreamReader(in, decoder);
+    }
+
+    /**
+     * Called by the patched IOServer in place of new BufferedReader(reader).
+     */
+    public static BufferedReader bufferedReader(Reader reader) {
+        return bufferedReader(reader, BUFFER_SIZE);
+    }
+
+    /**
+     * Called by the patched IOServer in place of new BufferedReader(reader, size).
+     */
+    public static BufferedReader bufferedReader(Reader reader, int size) {
+        if (reader instanceof StreamReader && lineSeparated(((StreamReader) reader).charset)) {
+            if (size <= 0)
+                throw new IllegalArgumentException("Buffer size <= 0");
+            StreamReader stream = (StreamReader) reader;
+            return new LineReader(stream.in, stream.charset, Math.max(size, BUFFER_SIZE));
+        }
+        return new BufferedReader(reader, size);
+    }
+
+    /**
+     * Called by the patched IOServer in place of line.split(regex). A line split
+     * before gets a copy of its parts, the cached array is shared between
+     * connections and the caller may change what it gets.
+     */
+    public static String[] split(String line, String regex) {
+        int index = (line.hashCode() * 31 + regex.hashCode()) & (CACHE_SIZE - 1);
+        Split split = splits[index];
+        if (split != null && split.line.equals(line) && split.regex.equals(regex))
+            return split.parts.clone();
+
+        String[] parts = line.split(regex);
+        if (line.length() <= MAX_CACHED_LENGTH)
+            splits[index] = new Split(line, regex, parts.clone());
+        return parts;
+    }
+
+    /**
+     * @return whether every line break in the charset is a single '\n' or '\r'
+     * byte, which never occurs inside another character
+     */
+    private static boolean lineSeparated(Charset charset) {
+        String name = charset.name();
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII) ||
+                name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+    }
+
+    private static class Split {
+        final String line;
+        final String regex;
+        final String[] parts;
+
+        Split(String line, String regex, String[] parts) {
+            this.line = line;
+            this.regex = regex;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * An InputStreamReader that remembers its stream, so a BufferedReader
+     * around it can read bytes directly.
+     */
+    private static class StreamReader extends InputStreamReader {
+        final InputStream in;
+        final Charset charset;
+
+        StreamReader(InputStream in, Charset charset) {
+            super(in, charset);
+            this.in = in;
+            this.charset = charset;
+        }
+    }
+
+    /**
+     * Reads lines from a reused buffer of bytes, with a cache of recent lines
+     * per connection. Anything other than readLine switches to a regular
+     * reader over the bytes not read yet, for good.
+     */
+    private static class LineReader extends BufferedReader {
+        private final InputStream in;
+        private final Charset charset;
+        // In read mode: position is the next byte to read, limit the end of the data
+        private ByteBuffer buffer;
+        private final byte[][] cachedBytes = new byte[CACHE_SIZE][];
+        private final String[] cachedLines = new String[CACHE_SIZE];
+        // The last line ended with '\r', a '\n' right after belongs to it
+        private boolean skipLF;
+        private BufferedReader fallback;
+
+        LineReader(InputStream in, Charset charset, int size) {
+            super(new StringReader(""), 1);
+            this.in = in;
+            this.charset = charset;
+            this.buffer = ByteBuffer.allocate(size);
+            buffer.flip();
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            synchronized (lock) {
+                if (fallback != null)
+                    return fallback.readLine();
+
+                byte[] bytes = buffer.array();
+                int scanned = 0;
+                while (true) {
+                    int start = buffer.position();
+                    int end = buffer.limit();
+                    if (skipLF && start < end) {
+                        skipLF = false;
+                        if (bytes[start] == '\n')
+                            buffer.position(++start);
+                    }
+
+                    for (int i = start + scanned; i < end; i++) {
+                        byte b = bytes[i];
+                        if (b == '\n' || b == '\r') {
+                            String line = line(bytes, start, i - start);
+                            buffer.position(i + 1);
+                            skipLF = b == '\r';
+                            return line;
+                        }
+                    }
+                    scanned = end - start;
+
+                    if (!fill()) {
+                        if (!buffer.hasRemaining())
+                            return null;
+                        // The last line has no line break
+                        String line = line(buffer.array(), buffer.position(), buffer.remaining());
+                        buffer.position(buffer.limit());
+                        return line;
+                    }
+                    bytes = buffer.array();
+                }
+            }
+        }
+
+        /**
+         * Reads more bytes after the ones not read yet, growing the buffer if it's full.
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+
+            int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read > 0)
+                buffer.position(buffer.position() + read);
+            buffer.flip();
+            return read >= 0;
+        }
+
+        private String line(byte[] bytes, int offset, int length) {
+            if (length > MAX_CACHED_LENGTH)
+                return new String(bytes, offset, length, charset);
+
+            int index = index(bytes, offset, length);
+            String line = cached(index, bytes, offset, length);
+            if (line == null) {
+                line = new String(bytes, offset, length, charset);
+                cachedBytes[index] = Arrays.copyOfRange(bytes, offset, offset + length);
+                cachedLines[index] = line;
+            }
+            return line;
+        }
+
+        private static int index(byte[] bytes, int offset, int length) {
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++)
+                hash = 31 * hash + bytes[i];
+            return (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        }
+
+        /**
+         * @return the line read before with the same bytes, null if it isn't cached
+         */
+        private String cached(int index, byte[] bytes, int offset, int length) {
+            byte[] cached = cachedBytes[index];
+            if (cached == null || cached.length != length)
+                return null;
+            for (int i = 0; i < length; i++) {
+                if (cached[i] != bytes[offset + i])
+                    return null;
+            }
+            return cachedLines[index];
+        }
+
+        private BufferedReader fallback() {
+            if (fallback == null) {
+                if (skipLF && buffer.hasRemaining() && buffer.get(buffer.position()) == '\n')
+                    buffer.position(buffer.position() + 1);
+                skipLF = false;
+                InputStream rest = new SequenceInputStream(
+                        new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()), in);
+                fallback = new BufferedReader(new InputStreamReader(rest, charset));
+            }
+            return fallback;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (lock) {
+                return fallback().read();
+            }
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            synchronized (lock) {
+                return fallback().read(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized (lock) {
+                return fallback().skip(n);
+            }
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            synchronized (lock) {
+                return fallback != null ? fallback.ready() : buffer.hasRemaining() || in.available() > 0;
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException {
+            synchronized (lock) {
+                fallback().mark(readAheadLimit);
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            synchronized (lock) {
+                fallback().reset();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.IOException;
+import java.nio.file.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the config file and applies changes to the running display. Patched
+ * classes are retransformed when the agent is loaded, so newly created
+ * components get the new values as well.
+ */
+public class ConfigWatcher implements Runnable {
+    // Editors often write a file in several steps, wait for them to finish
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path config;
+
+    private ConfigWatcher(Path config) {
+        this.config = config.toAbsolutePath();
+    }
+
+    public static void start(Path config) {
+        Thread thread = new Thread(new ConfigWatcher(config), "wsGUIWrapper-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        Path dir = config.getParent();
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+
+            while (true) {
+                if (!isConfigChange(watcher.take()))
+                    continue;
+
+                // Drain the events of the rest of the write
+                Thread.sleep(SETTLE_MILLIS);
+                WatchKey key;
+                while ((key = watcher.poll()) != null) {
+                    isConfigChange(key);
+                }
+
+                reload();
+            }
+        } catch (IOException e) {
+            System.err.println("Reload: Couldn't watch " + config);
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isConfigChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || config.getFileName().equals(event.context()))
+                changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        int port = Settings.getInstance().getPort();
+        if (!Settings.reload()) {
+            System.err.println("Reload: Config has errors, keeping current settings");
+            return;
+        }
+
+        if (Settings.getInstance().getPort() != port)
+            System.err.println("Reload: Port changes take effect after a restart");
+
+        Agent.retransform();
+        LiveComponents.apply();
+        System.out.println("Reload: Applied " + config.getFileName());
+    }
+}
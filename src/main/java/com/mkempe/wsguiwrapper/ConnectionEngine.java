@@ -0,0 +1,226 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the connections of the patched IOServer. The client code IOServer
+ * starts a thread for after accepting a client is run on a virtual thread when
+ * the JVM has them (Java 21 and later), otherwise on a bounded pool of platform
+ * threads, and its server socket accepts a much longer queue of pending connections.
+ * Messages are sent as soon as they're complete, without Nagle's delay. The
+ * protocol itself is left to IOServer. Only JDK types are used here, wsDisplay
+ * classes may live in another class loader.
+ */
+public class ConnectionEngine {
+    /**
+     * Pending connections the server socket queues, the JDK default of 50 is
+     * quickly exceeded when a whole class connects at once.
+     */
+    public static final int BACKLOG = 1024;
+
+    private static volatile MethodHandle startVirtualThread = startVirtualThread();
+    private static volatile ThreadPoolExecutor pool;
+    private static volatile boolean warned;
+
+    private ConnectionEngine() {
+    }
+
+    /**
+     * Called by the patched IOServer in place of start() on a plain Thread it
+     * constructs after accepting a client and starts right away, without
+     * keeping it. Since nothing can see that thread, its Runnable is run in its
+     * place, under its name: on a virtual thread, or on a pool thread that gets
+     * its own name back afterwards. When the pool and its queue are full the
+     * thread itself is started, like IOServer would have.
+     */
+    public static void start(Thread carrier) {
+        Runnable task = () -> {
+            Thread current = Thread.currentThread();
+            String name = current.getName();
+            current.setName(carrier.getName());
+            try {
+                carrier.run();
+            } catch (Throwable e) {
+                Thread.UncaughtExceptionHandler handler = carrier.getUncaughtExceptionHandler();
+                if (handler != null)
+                    handler.uncaughtException(carrier, e);
+            } finally {
+                current.setName(name);
+                // Not left for the next client on a pool thread
+                Thread.interrupted();
+            }
+        };
+
+        MethodHandle virtual = startVirtualThread;
+        if (virtual != null) {
+            try {
+                virtual.invoke(task);
+                return;
+            } catch (UnsupportedOperationException e) {
+                // A preview feature before Java 21
+                startVirtualThread = null;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        try {
+            pool().execute(task);
+        } catch (RejectedExecutionException e) {
+            if (!warned) {
+                warned = true;
+                System.err.println("Network: All " + pool.getMaximumPoolSize() + " threads are busy, " +
+                        "new clients get a thread of their own. Raise network.worker_threads or use Java 21");
+            }
+            carrier.start();
+        }
+    }
+
+    /**
+     * Called by the patched IOServer in place of new ServerSocket().
+     */
+    public static ServerSocket serverSocket() throws IOException {
+        return new ServerSocket();
+    }
+
+    /**
+     * Called by the patched IOServer in place of new ServerSocket(port).
+     */
+    public static ServerSocket serverSocket(int port) throws IOException {
+        return serverSocket(port, BACKLOG, null);
+    }
+
+    /**
+     * Called by the patched IOServer in place of new ServerSocket(port, backlog).
+     */
+    public static ServerSocket serverSocket(int port, int backlog) throws IOException {
+        return serverSocket(port, backlog, null);
+    }
+
+    /**
+     * Called by the patched IOServer in place of new ServerSocket(port, backlog, address).
+     */
+    public static ServerSocket serverSocket(int port, int backlog, InetAddress address) throws IOException {
+        ServerSocket socket = serverSocket();
+        try {
+            bind(socket, new InetSocketAddress(address, port), backlog);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Called by the patched IOServer in place of socket.bind(address).
+     */
+    public static void bind(ServerSocket socket, SocketAddress address) throws IOException {
+        bind(socket, address, BACKLOG);
+    }
+
+    /**
+     * Called by the patched IOServer in place of socket.bind(address, backlog).
+     */
+    public static void bind(ServerSocket socket, SocketAddress address, int backlog) throws IOException {
+        socket.bind(address, Math.max(backlog, BACKLOG));
+    }
+
+    /**
+     * Called with every accepted client. Small messages are sent right away
+     * instead of being held back by Nagle's algorithm.
+     */
+    static void accepted(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (SocketException ignored) {
+            // Already closed, IOServer finds out when it uses it
+        }
+    }
+
+    /**
+     * Called by the patched IOServer in place of writer.newLine(), so every
+     * message is sent when it's complete.
+     */
+    public static void newLine(BufferedWriter writer) throws IOException {
+        writer.newLine();
+        writer.flush();
+    }
+
+    private static ThreadPoolExecutor pool() {
+        if (pool == null) {
+            synchronized (ConnectionEngine.class) {
+                if (pool == null) {
+                    int threads = Settings.getInstance().getWorkerThreads();
+                    AtomicInteger count = new AtomicInteger();
+                    // Clients wait in the queue for another to disconnect, past that start() rejects them
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(threads), r -> {
+                        Thread thread = new Thread(r, "wsGUIWrapper-client-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    System.out.println("Network: Serving clients on up to " + threads + " threads");
+                    pool = executor;
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static MethodHandle startVirtualThread() {
+        try {
+            // Thread.startVirtualThread(Runnable), Java 21
+            return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bootstrap methods for the constants patched code loads through invokedynamic,
+ * such as colors from the config. The value is created when the call site is
+ * linked and every later execution returns the same instance, so patched
+ * methods don't allocate. Call sites asking for equal values share one
+ * instance. The type is resolved by the patched class's loader, so wsDisplay
+ * classes like AbsoluteConstraints work too.
+ */
+public class Constants {
+    // Per type, so wsDisplay class loaders aren't kept alive by a map of ours
+    private static final ClassValue<Map<List<Integer>, Object>> values = new ClassValue<Map<List<Integer>, Object>>() {
+        @Override
+        protected Map<List<Integer>, Object> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private Constants() {
+    }
+
+    /**
+     * @return call site returning a new instance of the call site's return type,
+     * created with the given arguments
+     */
+    public static CallSite create(MethodHandles.Lookup lookup, String name, MethodType type, int a, int b, int c)
+            throws ReflectiveOperationException {
+        return constant(type, a, b, c);
+    }
+
+    public static CallSite create(MethodHandles.Lookup lookup, String name, MethodType type, int a, int b, int c, int d)
+            throws ReflectiveOperationException {
+        return constant(type, a, b, c, d);
+    }
+
+    private static CallSite constant(MethodType type, Integer... args) throws ReflectiveOperationException {
+        Class<?> returnType = type.returnType();
+        Map<List<Integer>, Object> instances = values.get(returnType);
+        List<Integer> key = Arrays.asList(args);
+        Object value = instances.get(key);
+        if (value == null) {
+            Class<?>[] parameters = new Class<?>[args.length];
+            Arrays.fill(parameters, int.class);
+            Object created = returnType.getConstructor(parameters).newInstance((Object[]) args);
+            value = instances.putIfAbsent(key, created);
+            if (value == null)
+                value = created;
+        }
+        return new ConstantCallSite(MethodHandles.constant(returnType, value));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.awt.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Display state in headless mode. Every update IOServer makes to a component
+ * is recorded here as a property of that component, named after the field of
+ * wsDisplayGUI holding it. setDot(3, true) on ledMatrix1 becomes the property
+ * dot[3] of ledMatrix1 with the value true, setText("a") on jLabel2 the
+ * property text of jLabel2.
+ * <p>
+ * Meant to be queried by tests, either in the same JVM or through
+ * http://localhost:port/state when the metrics endpoint is enabled.
+ */
+public class HeadlessModel {
+    private static volatile boolean enabled;
+
+    private static final Map<String, Map<String, Object>> state = new ConcurrentHashMap<>();
+    private static final Map<Object, String> names = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Object lock = new Object();
+    private static long version;
+
+    private HeadlessModel() {
+    }
+
+    /**
+     * Switches to headless mode, must be called before any AWT class is initialized.
+     */
+    public static void enable() {
+        System.setProperty("java.awt.headless", "true");
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * @return names of the components that have been updated
+     */
+    public static Set<String> components() {
+        return new TreeSet<>(state.keySet());
+    }
+
+    /**
+     * @return the properties of the component, empty if it hasn't been updated
+     */
+    public static Map<String, Object> state(String component) {
+        Map<String, Object> properties = state.get(component);
+        return properties == null ? Collections.emptyMap() : new TreeMap<>(properties);
+    }
+
+    /**
+     * @return the value last set for the property, null if it was never set
+     */
+    public static Object get(String component, String property) {
+        Map<String, Object> properties = state.get(component);
+        return properties == null ? null : properties.get(property);
+    }
+
+    /**
+     * @return a number increasing with every recorded update
+     */
+    public static long version() {
+        synchronized (lock) {
+            return version;
+        }
+    }
+
+    /**
+     * Waits until an update is recorded after the given version.
+     *
+     * @return false if the timeout expired first
+     */
+    public static boolean awaitChange(long since, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (version <= since) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the whole model, one "component property=value" line per property
+     */
+    public static String dump() {
+        StringBuilder out = new StringBuilder();
+        for (String component : components()) {
+            state(component).forEach((property, value) ->
+                    out.append(component).append(' ').append(property).append('=').append(value).append('\n'));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Called by UpdateQueue with every update applied in headless mode, and
+     * by the patched IOServer after it called a Swing setter.
+     */
+    public static void record(Object component, String setter, Object[] args) {
+        String property = property(setter, args);
+        Object value = args.length > 0 ? args[args.length - 1] : null;
+        state.computeIfAbsent(name(component), c -> new ConcurrentHashMap<>()).put(property, String.valueOf(value));
+        changed();
+    }
+
+    static void windowVisible(Object window, boolean visible) {
+        if (!enabled)
+            return;
+        state.computeIfAbsent(name(window), c -> new ConcurrentHashMap<>()).put("visible", Boolean.toString(visible));
+        changed();
+    }
+
+    private static void changed() {
+        synchronized (lock) {
+            version++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * setDot with (3, true) is dot[3], setText with ("a") is text.
+     */
+    private static String property(String setter, Object[] args) {
+        String name = setter.startsWith("set") && setter.length() > 3 ?
+                Character.toLowerCase(setter.charAt(3)) + setter.substring(4) : setter;
+        if (args.length <= 1)
+            return name;
+
+        StringBuilder property = new StringBuilder(name).append('[');
+        for (int i = 0; i < args.length - 1; i++) {
+            if (i > 0)
+                property.append(',');
+            property.append(args[i]);
+        }
+        return property.append(']').toString();
+    }
+
+    private static String name(Object component) {
+        String name = names.get(component);
+        if (name != null)
+            return name;
+
+        for (Object window : LiveComponents.windows()) {
+            if (window == component) {
+                name = "window";
+            } else {
+                name = fieldName(window, component);
+            }
+            if (name != null) {
+                // Several displays in this JVM, tell them apart by port
+                Integer port = Instances.port(window.getClass().getClassLoader());
+                if (Instances.count() > 1 && port != null)
+                    name = port + "/" + name;
+                break;
+            }
+        }
+        // Not cached, the window holding it may not be registered yet
+        if (name == null)
+            return component.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(component));
+
+        names.put(component, name);
+        return name;
+    }
+
+    private static String fieldName(Object window, Object component) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = window.getClass(); c != null && c != HeadlessWindow.class; c = c.getSuperclass())
+            fields.addAll(Arrays.asList(c.getDeclaredFields()));
+
+        for (Field field : fields) {
+            if (Modifier.isStatic(field.getModifiers()) || !Component.class.isAssignableFrom(field.getType()))
+                continue;
+            try {
+                field.setAccessible(true);
+                if (field.get(window) == component)
+                    return field.getName();
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+            }
+        }
+        return null;
+    }
+}
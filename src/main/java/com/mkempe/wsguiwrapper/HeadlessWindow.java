@@ -0,0 +1,176 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Superclass of wsDisplayGUI in headless mode, in place of JFrame. It's a
+ * plain lightweight container with the JFrame methods wsDisplayGUI uses, so
+ * the components are created and laid out as usual but never shown or painted.
+ */
+public class HeadlessWindow extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    private String title;
+    private int defaultCloseOperation = WindowConstants.HIDE_ON_CLOSE;
+    private boolean resizable = true;
+    private boolean undecorated;
+    private int extendedState = Frame.NORMAL;
+    private Image iconImage;
+    private JMenuBar menuBar;
+    private Container contentPane = this;
+
+    public HeadlessWindow() {
+        this("");
+    }
+
+    public HeadlessWindow(String title) {
+        super(new BorderLayout());
+        this.title = title;
+    }
+
+    /**
+     * There's no screen, the configuration is ignored.
+     */
+    public HeadlessWindow(GraphicsConfiguration configuration) {
+        this("");
+    }
+
+    public HeadlessWindow(String title, GraphicsConfiguration configuration) {
+        this(title);
+    }
+
+    public Container getContentPane() {
+        return contentPane;
+    }
+
+    public void setContentPane(Container contentPane) {
+        if (this.contentPane != this)
+            remove(this.contentPane);
+        this.contentPane = contentPane;
+        if (contentPane != this)
+            add(contentPane, BorderLayout.CENTER);
+    }
+
+    public void pack() {
+        setSize(getPreferredSize());
+        validate();
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        super.setVisible(visible);
+        HeadlessModel.windowVisible(this, visible);
+    }
+
+    public void dispose() {
+        setVisible(false);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public int getDefaultCloseOperation() {
+        return defaultCloseOperation;
+    }
+
+    public void setDefaultCloseOperation(int operation) {
+        defaultCloseOperation = operation;
+    }
+
+    public boolean isResizable() {
+        return resizable;
+    }
+
+    public void setResizable(boolean resizable) {
+        this.resizable = resizable;
+    }
+
+    public boolean isUndecorated() {
+        return undecorated;
+    }
+
+    public void setUndecorated(boolean undecorated) {
+        this.undecorated = undecorated;
+    }
+
+    public int getExtendedState() {
+        return extendedState;
+    }
+
+    public void setExtendedState(int state) {
+        extendedState = state;
+    }
+
+    public Image getIconImage() {
+        return iconImage;
+    }
+
+    public void setIconImage(Image image) {
+        iconImage = image;
+    }
+
+    public void setIconImages(List<? extends Image> icons) {
+        iconImage = icons == null || icons.isEmpty() ? null : icons.get(0);
+    }
+
+    public JMenuBar getJMenuBar() {
+        return menuBar;
+    }
+
+    public void setJMenuBar(JMenuBar menuBar) {
+        this.menuBar = menuBar;
+    }
+
+    public void setLocationRelativeTo(Component component) {
+    }
+
+    public void setLocationByPlatform(boolean locationByPlatform) {
+    }
+
+    public void setAlwaysOnTop(boolean alwaysOnTop) {
+    }
+
+    public void toFront() {
+    }
+
+    public void toBack() {
+    }
+}
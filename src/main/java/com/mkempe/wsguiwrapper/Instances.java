@@ -0,0 +1,92 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The displays running in this JVM, each loaded by its own class loader and
+ * serving its own port. The wrapper classes, settings and patched bytecode
+ * are shared between them.
+ */
+public class Instances {
+    private static final Map<ClassLoader, Integer> ports = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Instances() {
+    }
+
+    static void register(ClassLoader loader, int port) {
+        ports.put(loader, port);
+    }
+
+    static int count() {
+        return ports.size();
+    }
+
+    /**
+     * @return port of the display loaded by the class loader, null if it isn't one
+     */
+    static Integer port(ClassLoader loader) {
+        return ports.get(loader);
+    }
+
+    /**
+     * Called with every window when it's registered. With more than one display,
+     * closing a window only closes that display, the JVM exits with the last one.
+     */
+    static void configureWindow(Object window) {
+        if (count() <= 1 || !(window instanceof JFrame))
+            return;
+
+        JFrame frame = (JFrame) window;
+        if (frame.getDefaultCloseOperation() != WindowConstants.EXIT_ON_CLOSE)
+            return;
+
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                for (Object other : LiveComponents.windows()) {
+                    if (other instanceof Window && ((Window) other).isDisplayable())
+                        return;
+                }
+                System.exit(0);
+            }
+        });
+    }
+}
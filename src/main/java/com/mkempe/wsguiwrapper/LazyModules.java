@@ -0,0 +1,277 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.*;
+
+/**
+ * Builds the display modules patched by LazyModuleAdapter. With fast startup
+ * a module is left as an empty placeholder by its constructor, and built the
+ * first time it's painted or one of its own methods is called, which is how
+ * IOServer reaches it. Until then it reports the preferred size it had when
+ * it was last built, remembered in the cache directory, so the window is laid
+ * out as before. A module whose size isn't known yet is built right away.
+ * <p>
+ * The Swing properties set on a placeholder are set on it as usual and set
+ * again once it's built, so they still override what the constructor sets.
+ */
+public class LazyModules {
+    private static final String SIZES = "module-sizes.properties";
+
+    private static final Map<Object, Placeholder> placeholders = Collections.synchronizedMap(new WeakHashMap<>());
+    // Preferred size of each module, by LazyModuleAdapter key, loaded on first use
+    private static Properties sizes;
+
+    private LazyModules() {
+    }
+
+    private static class Placeholder {
+        final String key;
+        // Setter descriptor and value of the properties set on the placeholder, in order
+        final List<Object[]> calls = new ArrayList<>();
+        boolean scheduled;
+
+        Placeholder(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Called by the patched module constructor right after super().
+     *
+     * @param key class name and hash of the original class, the size is remembered by it
+     */
+    public static void created(Object module, String key) {
+        LazyModule lazy = (LazyModule) module;
+        if (!Settings.getInstance().fastStartup()) {
+            lazy.wsGUIWrapper$build();
+        } else if (size(key) == null) {
+            build(lazy, key);
+        } else {
+            placeholders.put(module, new Placeholder(key));
+            lazy.wsGUIWrapper$defer();
+        }
+    }
+
+    /**
+     * Called at the start of the methods the patched module declares, builds it
+     * on the event dispatch thread if it's still a placeholder.
+     */
+    public static void ensureBuilt(Object module) {
+        LazyModule lazy = (LazyModule) module;
+        if (lazy.wsGUIWrapper$state() != LazyModule.DEFERRED)
+            return;
+        if (EventQueue.isDispatchThread()) {
+            build(lazy);
+            return;
+        }
+
+        // The caller goes on to use what the constructor sets up, it has to wait
+        boolean interrupted = false;
+        while (lazy.wsGUIWrapper$state() == LazyModule.DEFERRED) {
+            try {
+                EventQueue.invokeAndWait(() -> build(lazy));
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Called at the start of the paint methods of the patched module. The first
+     * paint of a placeholder builds it once the current frame is painted.
+     *
+     * @return true if module is a placeholder, only its background is painted
+     */
+    public static boolean painting(Object module) {
+        if (((LazyModule) module).wsGUIWrapper$state() != LazyModule.DEFERRED)
+            return false;
+
+        Placeholder placeholder = placeholders.get(module);
+        if (placeholder != null && !placeholder.scheduled) {
+            placeholder.scheduled = true;
+            EventQueue.invokeLater(() -> ensureBuilt(module));
+        }
+        return true;
+    }
+
+    /**
+     * Called by the getPreferredSize added to the patched module.
+     *
+     * @param measured the size Swing computed
+     * @return the size the module had when it was last built if it's a
+     * placeholder without a preferred size set, measured otherwise
+     */
+    public static Dimension preferredSize(Object module, Dimension measured) {
+        if (((LazyModule) module).wsGUIWrapper$state() != LazyModule.DEFERRED ||
+                ((Component) module).isPreferredSizeSet())
+            return measured;
+
+        Placeholder placeholder = placeholders.get(module);
+        Dimension size = placeholder == null ? null : size(placeholder.key);
+        return size == null ? measured : size;
+    }
+
+    /**
+     * Called by the setters added to the patched module, after the property is set.
+     *
+     * @param setter name and descriptor of the setter
+     */
+    public static void set(Object module, String setter, Object value) {
+        if (((LazyModule) module).wsGUIWrapper$state() != LazyModule.DEFERRED)
+            return;
+
+        Placeholder placeholder = placeholders.get(module);
+        if (placeholder != null)
+            placeholder.calls.add(new Object[]{setter, value});
+    }
+
+    private static void build(LazyModule module) {
+        if (module.wsGUIWrapper$state() != LazyModule.DEFERRED)
+            return;
+
+        Placeholder placeholder = placeholders.remove(module);
+        build(module, placeholder.key);
+        LiveComponents.moduleBuilt((Component) module);
+        replay(module, placeholder.calls);
+
+        ((Component) module).revalidate();
+        ((Component) module).repaint();
+    }
+
+    private static void build(LazyModule module, String key) {
+        StartupTimeline.Phase phase = StartupTimeline.begin("module");
+        try {
+            module.wsGUIWrapper$build();
+            // Before the properties set on the placeholder, which may include a preferred size
+            remember(key, ((Component) module).getPreferredSize());
+        } finally {
+            phase.end(module.getClass().getName());
+        }
+    }
+
+    private static void replay(LazyModule module, List<Object[]> calls) {
+        for (Object[] call : calls) {
+            String setter = (String) call[0];
+            int paren = setter.indexOf('(');
+            try {
+                Class<?> type = MethodType.fromMethodDescriptorString(setter.substring(paren),
+                        module.getClass().getClassLoader()).parameterType(0);
+                module.getClass().getMethod(setter.substring(0, paren), type).invoke(module, call[1]);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Fast startup: Couldn't set " + setter + " on " + module.getClass().getName() +
+                        " again after building it");
+            }
+        }
+    }
+
+    private static synchronized Dimension size(String key) {
+        String value = sizes().getProperty(key);
+        if (value == null)
+            return null;
+
+        int x = value.indexOf('x');
+        try {
+            return new Dimension(Integer.parseInt(value.substring(0, x)), Integer.parseInt(value.substring(x + 1)));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static synchronized void remember(String key, Dimension size) {
+        String value = size.width + "x" + size.height;
+        if (value.equals(sizes().getProperty(key)))
+            return;
+
+        // Only the current version of a module class is ever looked up
+        String prefix = key.substring(0, key.indexOf('@') + 1);
+        sizes.keySet().removeIf(name -> ((String) name).startsWith(prefix));
+        sizes.setProperty(key, value);
+        if (Settings.getInstance().cacheEnabled())
+            write();
+    }
+
+    private static Properties sizes() {
+        if (sizes != null)
+            return sizes;
+
+        sizes = new Properties();
+        Settings settings = Settings.getInstance();
+        if (settings.cacheEnabled()) {
+            Path file = Paths.get(settings.getCacheDirectory(), SIZES);
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    sizes.load(in);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("Fast startup: Error reading " + file);
+                    sizes.clear();
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static void write() {
+        Path dir = Paths.get(Settings.getInstance().getCacheDirectory());
+        Path file = dir.resolve(SIZES);
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, "module-sizes-", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                sizes.store(out, "Preferred size of the display modules, for fast startup");
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Fast startup: Error writing " + file);
+        }
+    }
+}
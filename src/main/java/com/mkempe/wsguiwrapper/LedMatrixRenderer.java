@@ -0,0 +1,399 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rendering fast path for the patched LedMatrix. Every paint records where the
+ * dots are and which ones are lit. When the matrix asks to be repainted, its
+ * paintComponent is run against an empty clip to find the dots that changed,
+ * and only those are repainted. Dots are drawn from pre-rendered sprites.
+ * <p>
+ * Anything that doesn't look like a two color matrix of ovals falls back to
+ * a full repaint and the original drawing calls.
+ * Only JDK types are used here, wsDisplay classes may live in another class loader.
+ */
+public class LedMatrixRenderer {
+    private static final int MAX_SPRITES = 16;
+
+    private static final Map<Object, State> states = Collections.synchronizedMap(new WeakHashMap<>());
+    // Only touched on the event dispatch thread
+    private static State current;
+    private static State probing;
+
+    private LedMatrixRenderer() {
+    }
+
+    /**
+     * Called at the start of the patched paintComponent.
+     */
+    public static void beginPaint(Object matrix) {
+        if (!SwingUtilities.isEventDispatchThread() || !(matrix instanceof JComponent))
+            return;
+
+        State state = states.get(matrix);
+        if (state == null) {
+            state = new State((JComponent) matrix);
+            states.put(matrix, state);
+        }
+
+        current = state;
+        state.recording = state == probing ? state.probe : state.next;
+        state.recording.reset(state.onColor());
+    }
+
+    /**
+     * Called before the patched paintComponent returns.
+     */
+    public static void endPaint(Object matrix) {
+        State state = current;
+        if (state == null || state.matrix.get() != matrix)
+            return;
+
+        current = null;
+        if (state.recording == state.next) {
+            state.next = state.painted;
+            state.painted = state.recording;
+            state.updateSprites();
+        }
+        state.recording = null;
+    }
+
+    /**
+     * Called by the patched LedMatrix in place of g.fillOval(x, y, width, height).
+     */
+    public static void fillOval(Graphics g, int x, int y, int width, int height, Object matrix) {
+        State state = current;
+        if (state == null || state.recording == null || state.matrix.get() != matrix) {
+            g.fillOval(x, y, width, height);
+            return;
+        }
+
+        Frame frame = state.recording;
+        frame.add(x, y, width, height, g.getColor());
+        if (frame == state.probe)
+            return;
+
+        Rectangle clip = g.getClipBounds();
+        if (clip != null && !clip.intersects(x, y, width, height))
+            return;
+
+        Image sprite = frame.unsupported ? null : state.sprite(g, width, height);
+        if (sprite != null)
+            g.drawImage(sprite, x, y, null);
+        else
+            g.fillOval(x, y, width, height);
+    }
+
+    /**
+     * Called by the patched LedMatrix in place of repaint().
+     */
+    public static void repaint(Object component) {
+        State state = states.get(component);
+        if (state == null) {
+            ((Component) component).repaint();
+            return;
+        }
+
+        if (SwingUtilities.isEventDispatchThread() && probing != null)
+            return;
+        if (state.pending.compareAndSet(false, true))
+            SwingUtilities.invokeLater(() -> update(state));
+    }
+
+    /**
+     * Repaints the dots that changed since the last paint, or the whole
+     * matrix when that can't be worked out.
+     */
+    private static void update(State state) {
+        state.pending.set(false);
+        JComponent matrix = state.matrix.get();
+        // A hidden window is repainted as a whole when it's shown
+        if (matrix == null || RenderGovernor.paused(matrix))
+            return;
+
+        if (state.disabled || !state.probe()) {
+            matrix.repaint();
+            return;
+        }
+
+        Frame painted = state.painted;
+        Frame probe = state.probe;
+        if (painted.unsupported || probe.unsupported || painted.count == 0 || !painted.sameLayout(probe)) {
+            matrix.repaint();
+            return;
+        }
+
+        BitSet changed = (BitSet) painted.on.clone();
+        changed.xor(probe.on);
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            int[] b = painted.bounds;
+            matrix.repaint(b[i * 4], b[i * 4 + 1], b[i * 4 + 2], b[i * 4 + 3]);
+        }
+    }
+
+    private static class State {
+        final WeakReference<JComponent> matrix;
+        final AtomicBoolean pending = new AtomicBoolean();
+        final Field onDotColor;
+        final Method paintComponent;
+        final Map<Sprite, Image> sprites = new HashMap<>();
+        Frame painted = new Frame();
+        Frame next = new Frame();
+        final Frame probe = new Frame();
+        Frame recording;
+        Color spriteOn, spriteOff;
+        boolean disabled;
+
+        State(JComponent matrix) {
+            this.matrix = new WeakReference<>(matrix);
+            this.onDotColor = field(matrix.getClass(), "onDotColor");
+            this.paintComponent = paintComponent(matrix.getClass());
+            disabled = onDotColor == null || paintComponent == null;
+        }
+
+        Color onColor() {
+            try {
+                return onDotColor != null ? (Color) onDotColor.get(matrix.get()) : null;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Runs paintComponent with an empty clip, recording the dots into probe.
+         *
+         * @return false if the matrix couldn't be probed
+         */
+        boolean probe() {
+            JComponent component = matrix.get();
+            if (component == null || painted.count == 0)
+                return false;
+
+            BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.setClip(0, 0, 0, 0);
+            probing = this;
+            try {
+                paintComponent.invoke(component, g);
+                return probe.count > 0;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("LedMatrix: Couldn't probe for changed dots, repainting everything");
+                disabled = true;
+                return false;
+            } finally {
+                probing = null;
+                current = null;
+                recording = null;
+                g.dispose();
+            }
+        }
+
+        /**
+         * Drops the sprites when the colors of the matrix change.
+         */
+        void updateSprites() {
+            if (!Objects.equals(spriteOn, painted.onColor) || !Objects.equals(spriteOff, painted.offColor)) {
+                sprites.clear();
+                spriteOn = painted.onColor;
+                spriteOff = painted.offColor;
+            }
+        }
+
+        /**
+         * @return a pre-rendered dot in the current color of g, or null to draw it directly
+         */
+        Image sprite(Graphics g, int width, int height) {
+            if (!(g instanceof Graphics2D) || width <= 0 || height <= 0)
+                return null;
+
+            Graphics2D g2 = (Graphics2D) g;
+            // Scaled or rotated graphics would blur the sprite
+            int type = g2.getTransform().getType();
+            if ((type & ~AffineTransform.TYPE_TRANSLATION) != 0 || !(g2.getPaint() instanceof Color) ||
+                    !AlphaComposite.SrcOver.equals(g2.getComposite()))
+                return null;
+
+            Object antialiasing = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+            Sprite key = new Sprite(g2.getColor(), width, height, antialiasing);
+            Image sprite = sprites.get(key);
+            if (sprite == null) {
+                if (sprites.size() >= MAX_SPRITES)
+                    sprites.clear();
+                sprite = render(key);
+                sprites.put(key, sprite);
+            }
+            return sprite;
+        }
+
+        private Image render(Sprite key) {
+            JComponent component = matrix.get();
+            GraphicsConfiguration configuration = component != null ? component.getGraphicsConfiguration() : null;
+            BufferedImage image = configuration != null ?
+                    configuration.createCompatibleImage(key.width, key.height, Transparency.TRANSLUCENT) :
+                    new BufferedImage(key.width, key.height, BufferedImage.TYPE_INT_ARGB);
+
+            Graphics2D g = image.createGraphics();
+            if (key.antialiasing != null)
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, key.antialiasing);
+            g.setColor(key.color);
+            g.fillOval(0, 0, key.width, key.height);
+            g.dispose();
+            return image;
+        }
+
+        private static Field field(Class<?> type, String name) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    Field field = c.getDeclaredField(name);
+                    if (field.getType() != Color.class)
+                        return null;
+                    field.setAccessible(true);
+                    return field;
+                } catch (NoSuchFieldException ignored) {
+                } catch (RuntimeException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private static Method paintComponent(Class<?> type) {
+            for (Class<?> c = type; c != null && c != JComponent.class; c = c.getSuperclass()) {
+                try {
+                    Method method = c.getDeclaredMethod("paintComponent", Graphics.class);
+                    method.setAccessible(true);
+                    return method;
+                } catch (NoSuchMethodException ignored) {
+                } catch (RuntimeException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The dots drawn by one paint, lit dots are those in the onDotColor of the matrix.
+     */
+    private static class Frame {
+        int[] bounds = new int[64 * 4];
+        int count;
+        final BitSet on = new BitSet();
+        Color onColor, offColor;
+        boolean unsupported;
+
+        void reset(Color onColor) {
+            count = 0;
+            on.clear();
+            this.onColor = onColor;
+            offColor = null;
+            unsupported = onColor == null;
+        }
+
+        void add(int x, int y, int width, int height, Color color) {
+            if (count * 4 == bounds.length) {
+                int[] grown = new int[bounds.length * 2];
+                System.arraycopy(bounds, 0, grown, 0, bounds.length);
+                bounds = grown;
+            }
+            bounds[count * 4] = x;
+            bounds[count * 4 + 1] = y;
+            bounds[count * 4 + 2] = width;
+            bounds[count * 4 + 3] = height;
+
+            if (color == null) {
+                unsupported = true;
+            } else if (color.equals(onColor)) {
+                on.set(count);
+            } else if (offColor == null) {
+                offColor = color;
+            } else if (!color.equals(offColor)) {
+                // More than two colors, a single bit per dot isn't enough
+                unsupported = true;
+            }
+            count++;
+        }
+
+        boolean sameLayout(Frame other) {
+            if (count != other.count || !Objects.equals(onColor, other.onColor) ||
+                    (offColor != null && other.offColor != null && !offColor.equals(other.offColor)))
+                return false;
+            for (int i = 0; i < count * 4; i++) {
+                if (bounds[i] != other.bounds[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Sprite {
+        final Color color;
+        final int width, height;
+        final Object antialiasing;
+
+        Sprite(Color color, int width, int height, Object antialiasing) {
+            this.color = color;
+            this.width = width;
+            this.height = height;
+            this.antialiasing = antialiasing;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sprite))
+                return false;
+            Sprite sprite = (Sprite) o;
+            return width == sprite.width && height == sprite.height &&
+                    color.equals(sprite.color) && Objects.equals(antialiasing, sprite.antialiasing);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(color, width, height, antialiasing);
+        }
+    }
+}
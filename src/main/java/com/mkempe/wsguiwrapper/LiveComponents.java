@@ -0,0 +1,236 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the components patched code has customized, so changed
+ * settings can be applied to a running display. The register methods are
+ * called from patched classes, components are only held weakly.
+ */
+public class LiveComponents {
+    static final String[] BUTTON_ARRAYS = {"pushButtonArrayOption1", "pushButtonArrayOption2", "pushButtonArrayOnOff"};
+    private static final String[] LABELS = {"jLabel1", "jLabel3"};
+
+    private static final Set<Object> windows = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final Set<Object> matrices = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final Set<JLabel> modifiedLabels = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final Set<ImageIcon> backgrounds = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    // Stock values from before the patched code changed them, restored when a setting is removed
+    private static final Map<Component, Color> originalBackgrounds = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<Component, Color> originalForegrounds = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<Object, Color> originalDotColors = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private LiveComponents() {
+    }
+
+    /**
+     * Called by the patched wsDisplayGUI after pack().
+     */
+    public static void registerWindow(Object window) {
+        windows.add(window);
+        Instances.configureWindow(window);
+        ButtonEvents.install();
+        RenderGovernor.install(window);
+    }
+
+    /**
+     * Called by the patched wsDisplayGUI before the configured colors are set,
+     * with the components still as wsDisplay made them.
+     */
+    public static void registerOriginals(Object window) {
+        for (String name : BUTTON_ARRAYS) {
+            Component button = component(window, name);
+            if (button != null)
+                originalBackgrounds.put(button, button.getBackground());
+        }
+        for (String name : LABELS) {
+            Component label = component(window, name);
+            if (label != null)
+                originalForegrounds.put(label, label.getForeground());
+        }
+    }
+
+    /**
+     * Called by LazyModules when a placeholder is built, before the colors set
+     * on it are set again. The colors its constructor set are the original ones.
+     */
+    static void moduleBuilt(Component module) {
+        originalBackgrounds.computeIfPresent(module, (component, color) -> component.getBackground());
+        originalForegrounds.computeIfPresent(module, (component, color) -> component.getForeground());
+    }
+
+    static List<Object> windows() {
+        return snapshot(windows);
+    }
+
+    /**
+     * Called at the end of the patched LedMatrix constructor.
+     */
+    public static void registerMatrix(Object matrix) {
+        matrices.add(matrix);
+    }
+
+    /**
+     * Called by the patched LedMatrix constructor with the color it's about to
+     * set, before the configured color replaces it.
+     */
+    public static void registerDotColor(Object matrix, Color original) {
+        originalDotColors.put(matrix, original);
+    }
+
+    /**
+     * Called by patched code for the "modified by" label, before its color is set.
+     */
+    public static void registerModifiedLabel(JLabel label) {
+        modifiedLabels.add(label);
+        originalForegrounds.put(label, label.getForeground());
+    }
+
+    /**
+     * Called by the patched wsDisplayGUI with the background image, the
+     * description of the icon has to be the URL of the original image.
+     */
+    public static void registerBackground(ImageIcon icon) {
+        backgrounds.add(icon);
+    }
+
+    /**
+     * Applies the current settings to every registered component on the event dispatch thread.
+     */
+    public static void apply() {
+        SwingUtilities.invokeLater(LiveComponents::applyNow);
+    }
+
+    private static void applyNow() {
+        Settings settings = Settings.getInstance();
+
+        for (Object window : snapshot(windows)) {
+            for (String name : BUTTON_ARRAYS) {
+                Component button = component(window, name);
+                if (button != null)
+                    setBackground(button, settings.getBorderColor());
+            }
+            for (String name : LABELS) {
+                Component label = component(window, name);
+                if (label != null)
+                    setForeground(label, settings.getTextColor());
+            }
+        }
+
+        for (JLabel label : snapshot(modifiedLabels)) {
+            label.setText(settings.getText());
+            label.setVisible(settings.addText());
+            setForeground(label, settings.getTextColor());
+        }
+
+        for (Object matrix : snapshot(matrices)) {
+            try {
+                Color color = settings.getMatrixColor();
+                if (color == null && !originalDotColors.containsKey(matrix))
+                    continue;
+
+                Field field = matrix.getClass().getDeclaredField("onDotColor");
+                field.setAccessible(true);
+                field.set(matrix, color != null ? color : originalDotColors.get(matrix));
+                ((Component) matrix).repaint();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Reload: Couldn't change matrix color");
+            }
+        }
+
+        String background = settings.getBackground();
+        for (ImageIcon icon : snapshot(backgrounds)) {
+            if (background != null)
+                BackgroundLoader.loadInto(icon, background);
+            else
+                BackgroundLoader.restoreOriginal(icon);
+        }
+
+        SegmentRenderer.themeChanged();
+        repaintWindows();
+    }
+
+    /**
+     * Repaints every registered window, must be called on the event dispatch thread.
+     */
+    public static void repaintWindows() {
+        for (Object window : snapshot(windows)) {
+            if (window instanceof Component)
+                ((Component) window).repaint();
+        }
+    }
+
+    /**
+     * Sets the color, or the original when it's null. Components registered
+     * without their original are left as they are then.
+     */
+    private static void setBackground(Component component, Color color) {
+        if (color != null)
+            component.setBackground(color);
+        else if (originalBackgrounds.containsKey(component))
+            component.setBackground(originalBackgrounds.get(component));
+    }
+
+    private static void setForeground(Component component, Color color) {
+        if (color != null)
+            component.setForeground(color);
+        else if (originalForegrounds.containsKey(component))
+            component.setForeground(originalForegrounds.get(component));
+    }
+
+    static Component component(Object owner, String name) {
+        try {
+            Field field = owner.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            Object value = field.get(owner);
+            return value instanceof Component ? (Component) value : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static <T> List<T> snapshot(Set<T> set) {
+        synchronized (set) {
+            return new ArrayList<>(set);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a display in this JVM under load from a number of client connections,
+ * and measures how long it takes from writing a message to the socket until
+ * the display has painted it. Every message is tagged with the time it was
+ * written, IOServer picks the tag up when it reads the message and the update
+ * it makes carries it to the event dispatch thread. A write counts as painted
+ * once an event queued behind the repaint the update caused has run. Messages
+ * IOServer handled without a display update are counted separately, so the
+ * run doesn't wait for them to be painted.
+ * <p>
+ * Messages come from a mix file, one per line, or from a traffic log made by
+ * TrafficRecorder. They're sent in turn by every client at an even pace.
+ */
+class LoadGenerator {
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CONNECT_TIMEOUT_MILLIS = 10000;
+    // How long to wait for the display to catch up after the last write
+    private static final long DRAIN_MILLIS = 2000;
+
+    private static volatile boolean running = false;
+    // Write times of messages not read by IOServer yet, by local port of the client
+    private static final Map<Integer, Tags> tags = new ConcurrentHashMap<>();
+    private static final LatencyHistogram writeToPaint = new LatencyHistogram();
+    private static final LongAdder painted = new LongAdder();
+    private static final LongAdder withoutUpdate = new LongAdder();
+    // Writes before this are warmup and not measured
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    private final int port;
+    private final int clients;
+    private final int rate;
+    private final int seconds;
+    private final List<String> mix;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder measured = new LongAdder();
+
+    LoadGenerator(int port, int clients, int rate, int seconds, List<String> mix) {
+        this.port = port;
+        this.clients = clients;
+        this.rate = rate;
+        this.seconds = seconds;
+        this.mix = mix;
+    }
+
+    static boolean running() {
+        return running;
+    }
+
+    /**
+     * Called by Metrics when IOServer reads a message from a client connection.
+     *
+     * @param remotePort port of the client on the other end
+     * @return when the load generator wrote the message, 0 if it didn't
+     */
+    static long read(int remotePort) {
+        Tags queue = tags.get(remotePort);
+        return queue != null ? queue.poll() : 0;
+    }
+
+    /**
+     * Called by Metrics when IOServer has handled a message without queueing a display update for it.
+     *
+     * @param writtenAt when the load generator wrote the message
+     */
+    static void withoutUpdate(long writtenAt) {
+        if (writtenAt >= measureFrom)
+            withoutUpdate.increment();
+    }
+
+    /**
+     * Called on the event dispatch thread once the updates made for the tagged messages are applied.
+     */
+    static void applied(long[] writtenAt, int count) {
+        // Repaints are queued while applying, or by a task queued while applying
+        SwingUtilities.invokeLater(() -> SwingUtilities.invokeLater(() -> {
+            long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (writtenAt[i] >= measureFrom) {
+                    writeToPaint.record(now - writtenAt[i]);
+                    painted.increment();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Reads messages from a mix file or a traffic log.
+     */
+    static List<String> readMix(Path file) throws IOException {
+        List<String> messages = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.mark(4);
+            if (in.available() >= 4 && in.readInt() == TrafficRecorder.MAGIC) {
+                in.readShort();
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                int type;
+                while ((type = in.read()) >= 0) {
+                    in.readInt();
+                    in.readLong();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    if (type != TrafficRecorder.RECEIVED)
+                        continue;
+                    for (byte b : data) {
+                        if (b == '\n') {
+                            addMessage(messages, line.toString("UTF-8"));
+                            line.reset();
+                        } else {
+                            line.write(b);
+                        }
+                    }
+                }
+            } else {
+                in.reset();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null)
+                    addMessage(messages, line);
+            }
+        }
+        if (messages.isEmpty())
+            throw new IOException("No messages in " + file);
+        return messages;
+    }
+
+    private static void addMessage(List<String> messages, String line) {
+        String message = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        if (!message.trim().isEmpty())
+            messages.add(message);
+    }
+
+    /**
+     * Runs the load and prints the results.
+     *
+     * @return false if the display couldn't be reached
+     */
+    boolean run() {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < clients; i++)
+                sockets.add(connect());
+        } catch (IOException e) {
+            System.err.println("Loadgen: Couldn't connect to port " + port + ": " + e.getMessage());
+            closeAll(sockets);
+            return false;
+        }
+
+        running = true;
+        long start = System.nanoTime();
+        measureFrom = start + WARMUP_NANOS;
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = sockets.get(i);
+            int client = i;
+            Thread thread = new Thread(() -> send(socket, client, start, end), "wsGUIWrapper-loadgen-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        try {
+            for (Thread thread : threads)
+                thread.join();
+            // Give the display a moment to paint what's still queued
+            long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+            while (painted.sum() + withoutUpdate.sum() < measured.sum() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        closeAll(sockets);
+
+        report(end - measureFrom);
+        return true;
+    }
+
+    private Socket connect() throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                tags.put(socket.getLocalPort(), new Tags());
+                drain(socket);
+                return socket;
+            } catch (ConnectException e) {
+                // The display may still be starting
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void send(Socket socket, int client, long start, long end) {
+        Tags queue = tags.get(socket.getLocalPort());
+        long interval = TimeUnit.SECONDS.toNanos(1) * clients / rate;
+        // Clients are spread out over the interval instead of all sending at once
+        long next = start + interval * client / clients;
+        int index = client % mix.size();
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            while (next < end) {
+                long now;
+                while ((now = System.nanoTime()) < next)
+                    LockSupport.parkNanos(next - now);
+
+                // Tagged before writing, IOServer may read it right away
+                long writtenAt = System.nanoTime();
+                queue.add(writtenAt);
+                out.write(mix.get(index));
+                out.write('\n');
+                out.flush();
+                sent.increment();
+                if (writtenAt >= measureFrom)
+                    measured.increment();
+
+                index = (index + 1) % mix.size();
+                next += interval;
+            }
+        } catch (IOException e) {
+            System.err.println("Loadgen: Client " + client + " stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads what the display sends, so it never blocks on a full socket buffer.
+     */
+    private static void drain(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[4096];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // Discarded
+                }
+            } catch (IOException ignored) {
+                // Closed when the load ends
+            }
+        }, "wsGUIWrapper-loadgen-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeAll(List<Socket> sockets) {
+        for (Socket socket : sockets) {
+            tags.remove(socket.getLocalPort());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void report(long nanos) {
+        double seconds = nanos / 1e9;
+        long measuredWrites = measured.sum();
+        long paintedWrites = painted.sum();
+        long otherWrites = withoutUpdate.sum();
+        System.out.println(String.format("Loadgen: %d clients sent %d messages, %d in %.1f s measured (%.0f/s, target %d/s)",
+                clients, sent.sum(), measuredWrites, seconds, measuredWrites / seconds, rate));
+        System.out.println(String.format("Loadgen: %d painted (%.0f/s), %d without a display update, %d still queued",
+                paintedWrites, paintedWrites / seconds, otherWrites, Math.max(0, measuredWrites - paintedWrites - otherWrites)));
+        System.out.println(String.format("Loadgen: Write to paint p50 %s, p99 %s, p999 %s, max %s",
+                millis(writeToPaint.valueAt(0.5)), millis(writeToPaint.valueAt(0.99)),
+                millis(writeToPaint.valueAt(0.999)), millis(writeToPaint.getMax())));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    /**
+     * Write times of one connection in order, written by its client thread and read by IOServer.
+     */
+    private static class Tags {
+        private long[] times = new long[1024];
+        private int head, size;
+
+        synchronized void add(long time) {
+            if (size == times.length) {
+                long[] larger = new long[times.length * 2];
+                for (int i = 0; i < size; i++)
+                    larger[i] = times[(head + i) % times.length];
+                times = larger;
+                head = 0;
+            }
+            times[(head + size) % times.length] = time;
+            size++;
+        }
+
+        synchronized long poll() {
+            if (size == 0)
+                return 0;
+            long time = times[head];
+            head = (head + 1) % times.length;
+            size--;
+            return time;
+        }
+    }
+}
@@ -31,105 +31,508 @@
 
 package com.mkempe.wsguiwrapper;
 
-import com.mkempe.wsguiwrapper.asm.IOServerAdapter;
-import com.mkempe.wsguiwrapper.asm.LedMatrixAdapter;
-import com.mkempe.wsguiwrapper.asm.wsDisplayGuiAdapter;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
 
 public class Main {
 
     public static void main(String[] args) {
         int port = Settings.getInstance().getPort();
+        int instances = 1;
+        int basePort = -1;
+        Path replay = null;
+        String host = "localhost";
+        double speed = 1;
+        boolean loadgen = false;
+        int clients = 1;
+        int rate = 1000;
+        int duration = 10;
+        Path mix = null;
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-p":
                 case "--port":
                     try {
-                        port = Integer.parseInt(args[++i]);
+                        port = Integer.parseInt(value(args, ++i, "port number"));
                     } catch (NumberFormatException e) {
                         System.err.println("Invalid port number: " + args[i]);
                     }
                     break;
+                case "--instances":
+                    try {
+                        instances = Math.max(1, Integer.parseInt(value(args, ++i, "number of instances")));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid number of instances: " + args[i]);
+                    }
+                    break;
+                case "--base-port":
+                    try {
+                        basePort = Integer.parseInt(value(args, ++i, "port number"));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid port number: " + args[i]);
+                    }
+                    break;
+                case "--record":
+                    try {
+                        TrafficRecorder.start(Paths.get(value(args, ++i, "output path")));
+                    } catch (IOException e) {
+                        System.err.println("Couldn't record to " + args[i] + ": " + e.getMessage());
+                        System.exit(1);
+                    }
+                    break;
+                case "--replay":
+                    replay = Paths.get(value(args, ++i, "log path"));
+                    break;
+                case "--host":
+                    host = value(args, ++i, "host name");
+                    break;
+                case "--speed":
+                    // A multiple of the recorded pace, or max to send as fast as possible
+                    try {
+                        speed = value(args, ++i, "speed").equals("max") ? 0 : Double.parseDouble(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid speed: " + args[i]);
+                    }
+                    break;
+                case "--loadgen":
+                    loadgen = true;
+                    break;
+                case "--clients":
+                    clients = positive(args, ++i, "number of clients");
+                    break;
+                case "--rate":
+                    // Messages per second, over all clients
+                    rate = positive(args, ++i, "rate");
+                    break;
+                case "--duration":
+                    // Seconds measured, after a second of warmup
+                    duration = positive(args, ++i, "duration");
+                    break;
+                case "--mix":
+                    mix = Paths.get(value(args, ++i, "mix path"));
+                    break;
+                case "--headless":
+                    HeadlessModel.enable();
+                    break;
+                case "--startup-report":
+                    StartupTimeline.reportOnExit(System.out);
+                    break;
+                case "--verify":
+                    System.exit(verify() ? 0 : 1);
+                    break;
+                case "--attach":
+                    System.exit(Attacher.attach(value(args, ++i, "process id")) ? 0 : 1);
+                    break;
+                case "--emit-patched-jar":
+                    System.exit(emitPatchedJar(Paths.get(value(args, ++i, "output path"))) ? 0 : 1);
+                    break;
                 default:
                     System.err.println("Unknown argument: " + args[i]);
             }
         }
 
-        // If java agent didn't run (java 8 without -javaagent argument)
-        // try using classloader instead
-        if (!Agent.loaded()) {
+        if (replay != null)
+            System.exit(new TrafficReplay(host, port, speed).replay(replay) ? 0 : 1);
 
-            ClassWriter wsDisplayCw = null;
-            ClassWriter ioServerCw = null;
-            ClassWriter ledMatrixCw = null;
+        List<String> messages = null;
+        if (loadgen) {
+            if (mix == null) {
+                System.err.println("--loadgen needs the messages to send, given with --mix <file>");
+                usage();
+                System.exit(1);
+            }
+            if (instances > 1) {
+                System.err.println("--loadgen measures a single display, it can't be combined with --instances");
+                System.exit(1);
+            }
             try {
-                // Transform wsDisplayGUI
-                ClassReader wsDisplayCr = new ClassReader("wsGUI.wsDisplayGUI");
-                wsDisplayCw = new ClassWriter(wsDisplayCr, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                wsDisplayCr.accept(new wsDisplayGuiAdapter(wsDisplayCw), 0);
-
-                // Transform IOServer
-                ClassReader ioServerCr = new ClassReader("wsGUI.IOServer");
-                ioServerCw = new ClassWriter(ioServerCr, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                ioServerCr.accept(new IOServerAdapter(ioServerCw), 0);
-
-                // Transform LedMatrix
-                ClassReader ledMatrixCr = new ClassReader("modules.LedMatrix");
-                ledMatrixCw = new ClassWriter(ledMatrixCr, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                ledMatrixCr.accept(new LedMatrixAdapter(ledMatrixCw), 0);
-            } catch (IOException | NullPointerException e) {
+                messages = LoadGenerator.readMix(mix);
+            } catch (IOException e) {
+                System.err.println("Loadgen: Couldn't read " + mix + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // If java agent didn't run (started without -javaagent argument)
+        // load patched classes through our own class loader instead
+        ClassLoader loader = Main.class.getClassLoader();
+        if (HeadlessModel.enabled() && Patcher.isPrePatched(loader)) {
+            System.err.println("Headless mode needs the original wsDisplay.jar, not one patched ahead of time");
+            System.exit(1);
+        }
+        if (instances > 1) {
+            startInstances(loader, instances, basePort < 0 ? port : basePort);
+            return;
+        }
+        if (!Agent.loaded() && !Patcher.isPrePatched(loader)) {
+            try {
+                loader = loadPatched(loader);
+            } catch (IOException e) {
                 System.err.println("Failed to transform bytecode");
                 e.printStackTrace();
             }
+        }
 
-            try {
-                // Use reflection to access ClassLoader defineClass
-                ClassLoader cl = ClassLoader.getSystemClassLoader();
-                Class<?> cls = Class.forName("java.lang.ClassLoader");
-                Method defineClass = cls.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
-                defineClass.setAccessible(true);
-
-                // Define modified classes
-                Object[] clsArgs;
-                if (wsDisplayCw != null) {
-                    clsArgs = new Object[]{"wsGUI.wsDisplayGUI", wsDisplayCw.toByteArray(), 0, wsDisplayCw.toByteArray().length};
-                    defineClass.invoke(cl, clsArgs);
-                }
-                if (ioServerCw != null) {
-                    clsArgs = new Object[]{"wsGUI.IOServer", ioServerCw.toByteArray(), 0, ioServerCw.toByteArray().length};
-                    defineClass.invoke(cl, clsArgs);
-                }
-                if (ledMatrixCw != null) {
-                    clsArgs = new Object[]{"modules.LedMatrix", ledMatrixCw.toByteArray(), 0, ledMatrixCw.toByteArray().length};
-                    defineClass.invoke(cl, clsArgs);
-                }
+        setPort(loader, port);
+        MetricsExporter.start(Settings.getInstance());
+        if (!startDisplay(loader))
+            return;
 
-                defineClass.setAccessible(false);
-            } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException |
-                     InvocationTargetException e) {
-                System.err.println("Couldn't access ClassLoader");
-                e.printStackTrace();
+        if (Settings.getInstance().hotReload())
+            ConfigWatcher.start(Settings.getInstance().getConfigPath());
+
+        if (loadgen)
+            System.exit(new LoadGenerator(port, clients, rate, duration, messages).run() ? 0 : 1);
+
+        if (HeadlessModel.enabled()) {
+            System.out.println("Headless: Serving port " + port + " without a window");
+            awaitForever();
+        }
+    }
+
+    /**
+     * @return the argument at index as a number above zero, exits if it's missing or isn't one
+     */
+    private static int positive(String[] args, int index, String name) {
+        String value = value(args, index, name);
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0)
+                return number;
+        } catch (NumberFormatException ignored) {
+        }
+        System.err.println("Invalid " + name + ": " + value + ", it must be a whole number above 0");
+        usage();
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * @return the argument at index, the value of the option before it, exits if it's missing
+     */
+    private static String value(String[] args, int index, String name) {
+        if (index >= args.length) {
+            System.err.println("Missing " + name + " for " + args[index - 1]);
+            usage();
+            System.exit(1);
+        }
+        return args[index];
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -jar wsGUIWrapper.jar [options]");
+        System.err.println("  -p, --port <port>            port to serve clients on");
+        System.err.println("  --instances <count>          run several displays in one JVM");
+        System.err.println("  --base-port <port>           port of the first of several displays");
+        System.err.println("  --headless                   run without a window");
+        System.err.println("  --startup-report             print the startup timeline on exit");
+        System.err.println("  --record <file>              record client traffic to a log");
+        System.err.println("  --replay <file>              replay a traffic log to a display");
+        System.err.println("  --host <host>                display to replay to, localhost by default");
+        System.err.println("  --speed <multiple|max>       pace of the replay");
+        System.err.println("  --loadgen --mix <file>       measure write to paint latency with messages from a file");
+        System.err.println("  --clients <count>            load generator connections, 1 by default");
+        System.err.println("  --rate <messages>            load generator messages per second, 1000 by default");
+        System.err.println("  --duration <seconds>         load generator seconds measured, 10 by default");
+        System.err.println("  --verify                     verify the patched classes and exit");
+        System.err.println("  --attach <pid>               patch a running display");
+        System.err.println("  --emit-patched-jar <file>    write a patched copy of wsDisplay.jar");
+    }
+
+    /**
+     * Starts several displays, each defined by its own class loader so their
+     * static state stays apart, serving consecutive ports from basePort.
+     * The patched bytecode is produced once and shared by all of them.
+     */
+    private static void startInstances(ClassLoader parent, int instances, int basePort) {
+        ClassLoader[] loaders = new ClassLoader[instances];
+        try {
+            long start = System.nanoTime();
+            Map<String, byte[]> patched = Patcher.isPrePatched(parent)
+                    ? Collections.<String, byte[]>emptyMap() : patchAll();
+            URL location = wsDisplayLocation(parent);
+            for (int i = 0; i < instances; i++) {
+                loaders[i] = new PatchedClassLoader(new URL[]{location}, parent, patched);
+                Instances.register(loaders[i], basePort + i);
             }
+            System.out.println("Instances: transformed " + patched.size() + " classes for " + instances +
+                    " displays in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Failed to transform bytecode");
+            e.printStackTrace();
+            return;
+        }
+
+        MetricsExporter.start(Settings.getInstance());
+        for (int i = 0; i < instances; i++) {
+            setPort(loaders[i], basePort + i);
+            if (!startDisplay(loaders[i]))
+                return;
+        }
+        Thread.currentThread().setContextClassLoader(parent);
+
+        if (Settings.getInstance().hotReload())
+            ConfigWatcher.start(Settings.getInstance().getConfigPath());
+
+        if (HeadlessModel.enabled()) {
+            System.out.println("Headless: Serving ports " + basePort + "-" + (basePort + instances - 1) +
+                    " without a window");
+            awaitForever();
         }
+    }
 
-        // Set new port number using reflection
+    /**
+     * Sets the port wsDisplay listens on using reflection.
+     */
+    private static void setPort(ClassLoader loader, int port) {
+        StartupTimeline.Phase phase = StartupTimeline.begin("port");
         try {
-            Field portField = wsGUI.IOServer.class.getDeclaredField("port");
+            Field portField = Class.forName("wsGUI.IOServer", true, loader).getDeclaredField("port");
             portField.setAccessible(true);
             portField.setInt(null, port);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
+        } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
             System.err.println("Couldn't access port number");
             e.printStackTrace();
+        } finally {
+            phase.end(Integer.toString(port));
+        }
+    }
+
+    /**
+     * Calls the original jar main function.
+     *
+     * @return false if wsDisplay threw while starting
+     */
+    private static boolean startDisplay(ClassLoader loader) {
+        try {
+            Thread.currentThread().setContextClassLoader(loader);
+            Class.forName("wsGUI.wsDisplayGUI", true, loader)
+                    .getMethod("main", String[].class)
+                    .invoke(null, (Object) null);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            System.err.println("Couldn't start wsDisplay");
+            e.printStackTrace();
+        } catch (InvocationTargetException e) {
+            System.err.println("wsDisplay failed to start");
+            e.getCause().printStackTrace();
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Without a window nothing else keeps the JVM running.
+     */
+    private static void awaitForever() {
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Patches all registered classes concurrently and returns a class loader
+     * that defines them in place of the originals in wsDisplay.jar.
+     */
+    private static ClassLoader loadPatched(ClassLoader parent) throws IOException {
+        long start = System.nanoTime();
+        Map<String, byte[]> patched = patchAll();
+        long transformed = System.nanoTime();
 
-        // Call original jar main function.
-        wsGUI.wsDisplayGUI.main(null);
+        PatchedClassLoader loader = new PatchedClassLoader(new URL[]{wsDisplayLocation(parent)}, parent, patched);
+        for (String className : patched.keySet()) {
+            try {
+                loader.loadClass(className);
+            } catch (ClassNotFoundException | LinkageError e) {
+                throw new IOException("Failed to define " + className, e);
+            }
+        }
+        long defined = System.nanoTime();
+
+        System.out.println("Fallback: transformed " + patched.size() + " classes in " +
+                (transformed - start) / 1000000 + " ms, defined in " + (defined - transformed) / 1000000 + " ms");
+        return loader;
+    }
+
+    /**
+     * Patches all registered classes concurrently.
+     *
+     * @return patched classfiles by binary class name
+     */
+    private static Map<String, byte[]> patchAll() throws IOException {
+
+        Set<String> targets = targets(Main.class.getClassLoader());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(targets.size(), Runtime.getRuntime().availableProcessors())), r -> {
+                    Thread thread = new Thread(r, "wsGUIWrapper-transform");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        Map<String, Future<byte[]>> futures = new HashMap<>();
+        for (String className : targets) {
+            futures.put(className, executor.submit(() -> Patcher.patch(className, readClass(className))));
+        }
+        executor.shutdown();
+
+        Map<String, byte[]> patched = new HashMap<>();
+        try {
+            for (Map.Entry<String, Future<byte[]>> entry : futures.entrySet()) {
+                patched.put(entry.getKey().replace('/', '.'), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transforming", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to transform " + e.getCause().getMessage(), e.getCause());
+        }
+        return patched;
+    }
+
+    /**
+     * @return the registered classes and the classes in wsDisplay.jar matching a family
+     */
+    static Set<String> targets(ClassLoader loader) throws IOException {
+        if (!AdapterRegistry.hasFamilies())
+            return AdapterRegistry.targets();
+
+        Set<String> targets = new TreeSet<>(AdapterRegistry.targets());
+        try {
+            Path location = Paths.get(wsDisplayLocation(loader).toURI());
+            if (Files.isDirectory(location)) {
+                try (Stream<Path> files = Files.walk(location)) {
+                    files.map(file -> location.relativize(file).toString().replace(File.separatorChar, '/'))
+                            .forEach(name -> addTarget(targets, name));
+                }
+            } else {
+                try (ZipFile jar = new ZipFile(location.toFile())) {
+                    jar.stream().forEach(entry -> addTarget(targets, entry.getName()));
+                }
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("Couldn't list wsDisplay classes", e);
+        }
+        return targets;
+    }
+
+    private static void addTarget(Set<String> targets, String fileName) {
+        if (!fileName.endsWith(".class"))
+            return;
+        String className = fileName.substring(0, fileName.length() - ".class".length());
+        if (AdapterRegistry.get(className) != null)
+            targets.add(className);
+    }
+
+    /**
+     * @return URL of the jar or directory wsDisplay classes are loaded from
+     */
+    private static URL wsDisplayLocation(ClassLoader loader) throws IOException {
+        String resource = "wsGUI/wsDisplayGUI.class";
+        URL url = loader.getResource(resource);
+        if (url == null)
+            throw new IOException("Class not found: wsGUI/wsDisplayGUI");
+
+        URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection)
+            return ((JarURLConnection) connection).getJarFileURL();
+
+        String location = url.toString();
+        return new URL(location.substring(0, location.length() - resource.length()));
+    }
+
+    /**
+     * Writes a copy of wsDisplay.jar with the patches already applied, which
+     * can replace the original so startup needs neither the agent nor ASM.
+     */
+    private static boolean emitPatchedJar(Path target) {
+        try {
+            URL location = wsDisplayLocation(Main.class.getClassLoader());
+            Path source = Paths.get(location.toURI());
+            if (!Files.isRegularFile(source)) {
+                System.err.println("wsDisplay classes aren't loaded from a jar: " + source);
+                return false;
+            }
+
+            int count = Patcher.writePatchedJar(source, target);
+            System.out.println("Patched " + count + " classes from " + source + " into " + target);
+            return true;
+        } catch (IOException | URISyntaxException e) {
+            System.err.println("Failed to write patched jar");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Patches every registered class and runs it through the bytecode verifier.
+     * Loads the original classes, so the display can't be started afterwards.
+     */
+    private static boolean verify() {
+        if (!Patcher.canVerify()) {
+            System.err.println("Verify: Needs org.ow2.asm:asm-util on the classpath");
+            return false;
+        }
+        PrintWriter out = new PrintWriter(System.err);
+        boolean ok = true;
+        Set<String> targets;
+        try {
+            targets = targets(Main.class.getClassLoader());
+        } catch (IOException e) {
+            System.err.println("Verify: " + e.getMessage());
+            return false;
+        }
+        for (String className : targets) {
+            try {
+                byte[] patched = Patcher.patch(className, readClass(className));
+                if (Patcher.verify(patched, Main.class.getClassLoader(), out)) {
+                    System.out.println("Verify: " + className + " OK");
+                } else {
+                    System.err.println("Verify: " + className + " FAILED");
+                    ok = false;
+                }
+            } catch (IOException e) {
+                System.err.println("Verify: " + e.getMessage());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private static byte[] readClass(String className) throws IOException {
+        InputStream is = Main.class.getClassLoader().getResourceAsStream(className + ".class");
+        if (is == null)
+            throw new IOException("Class not found: " + className);
+
+        try (InputStream in = is) {
+            return Patcher.readAll(in);
+        }
     }
 }
\ No newline at end of file
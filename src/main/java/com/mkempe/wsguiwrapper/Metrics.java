@@ -0,0 +1,444 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the connections of the patched IOServer. The hooks are called
+ * from patched code, everything is lock-free so they can be called from every
+ * client thread. Exported by MetricsExporter.
+ * Only JDK types are used here, wsDisplay classes may live in another class loader.
+ */
+public class Metrics {
+    // Protocol messages are told apart by their first word, capped so a
+    // misbehaving client can't create unbounded numbers of types
+    private static final int MAX_TYPES = 64;
+    private static final int MAX_TYPE_LENGTH = 32;
+    private static final String OTHER = "other";
+
+    private static final LongAdder accepted = new LongAdder();
+    private static final AtomicLong active = new AtomicLong();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final Map<String, LongAdder> received = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> sent = new ConcurrentHashMap<>();
+    private static final AtomicLong queueDepth = new AtomicLong();
+    private static final LatencyHistogram decodeToApply = new LatencyHistogram();
+    private static final LatencyHistogram pressToWire = new LatencyHistogram();
+    private static final Map<Socket, Connection> connections = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger connectionIds = new AtomicInteger();
+    // When the last message read on this thread was decoded, and written by LoadGenerator
+    private static final ThreadLocal<long[]> decoded = ThreadLocal.withInitial(() -> new long[2]);
+    // Connection last read from on this thread, only kept while LoadGenerator runs
+    private static final ThreadLocal<Connection> reading = new ThreadLocal<>();
+    // Types of recent messages, so a repeated message isn't cut up again
+    private static final MessageType[] types = new MessageType[256];
+
+    private Metrics() {
+    }
+
+    /**
+     * Called by the patched IOServer in place of server.accept().
+     */
+    public static Socket accept(ServerSocket server) throws IOException {
+        Socket socket = server.accept();
+        ConnectionEngine.accepted(socket);
+        accepted.increment();
+        active.incrementAndGet();
+        Connection connection = new Connection(socket.getPort());
+        connections.put(socket, connection);
+        TrafficRecorder.record(TrafficRecorder.OPEN, connection.id);
+        return socket;
+    }
+
+    /**
+     * Called by the patched IOServer in place of socket.getInputStream().
+     */
+    public static InputStream inputStream(Socket socket) throws IOException {
+        return new CountingInputStream(socket.getInputStream(), connection(socket));
+    }
+
+    /**
+     * Called by the patched IOServer in place of socket.getOutputStream().
+     */
+    public static OutputStream outputStream(Socket socket) throws IOException {
+        return new CountingOutputStream(socket.getOutputStream(), connection(socket));
+    }
+
+    /**
+     * Called by the patched IOServer in place of socket.close().
+     */
+    public static void close(Socket socket) throws IOException {
+        try {
+            socket.close();
+        } finally {
+            Connection connection = connections.get(socket);
+            if (connection != null)
+                connection.close();
+        }
+    }
+
+    /**
+     * Called by the patched IOServer with every message it reads.
+     */
+    public static void received(String message) {
+        if (message == null)
+            return;
+        long[] times = decoded.get();
+        times[0] = System.nanoTime();
+        if (LoadGenerator.running()) {
+            handled(times);
+            Connection connection = reading.get();
+            times[1] = connection != null ? LoadGenerator.read(connection.remotePort) : 0;
+        }
+        count(received, message);
+    }
+
+    /**
+     * Called when IOServer is done with the last message read on this thread,
+     * either reading the next one or waiting on the socket for it. A write time
+     * no update took means the message didn't change the display.
+     */
+    private static void handled(long[] times) {
+        if (times[1] != 0) {
+            LoadGenerator.withoutUpdate(times[1]);
+            times[1] = 0;
+        }
+    }
+
+    /**
+     * @return when the last message on this thread was read, 0 if none was
+     */
+    static long decodedAt() {
+        return decoded.get()[0];
+    }
+
+    /**
+     * @return when LoadGenerator wrote the last message read on this thread, 0 if
+     * it didn't or an update already took it
+     */
+    static long takeWrittenAt() {
+        long[] times = decoded.get();
+        long writtenAt = times[1];
+        times[1] = 0;
+        return writtenAt;
+    }
+
+    static void queued() {
+        queueDepth.incrementAndGet();
+    }
+
+    /**
+     * @param decodedAt when the message causing the update was read, 0 if unknown
+     */
+    static void applied(long decodedAt) {
+        queueDepth.decrementAndGet();
+        if (decodedAt != 0)
+            decodeToApply.record(System.nanoTime() - decodedAt);
+    }
+
+    static void pressToWire(long nanos) {
+        pressToWire.record(nanos);
+    }
+
+    /**
+     * @param count updates replaced by a later one before being applied
+     */
+    static void folded(int count) {
+        queueDepth.addAndGet(-count);
+    }
+
+    static long getConnectionsAccepted() {
+        return accepted.sum();
+    }
+
+    static long getConnectionsActive() {
+        return active.get();
+    }
+
+    static long getBytesReceived() {
+        return bytesIn.sum();
+    }
+
+    static long getBytesSent() {
+        return bytesOut.sum();
+    }
+
+    static Map<String, Long> getMessagesReceived() {
+        return snapshot(received);
+    }
+
+    static Map<String, Long> getMessagesSent() {
+        return snapshot(sent);
+    }
+
+    static long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    static LatencyHistogram getDecodeToApply() {
+        return decodeToApply;
+    }
+
+    static LatencyHistogram getPressToWire() {
+        return pressToWire;
+    }
+
+    private static void count(Map<String, LongAdder> counters, String message) {
+        increment(counters, type(message));
+    }
+
+    private static void increment(Map<String, LongAdder> counters, String type) {
+        LongAdder counter = counters.get(type);
+        if (counter == null) {
+            if (counters.size() >= MAX_TYPES)
+                type = OTHER;
+            counter = counters.computeIfAbsent(type, t -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    private static String type(String message) {
+        int index = message.hashCode() & (types.length - 1);
+        MessageType cached = types[index];
+        if (cached != null && cached.message.equals(message))
+            return cached.type;
+
+        int end = 0;
+        while (end < message.length() && end < MAX_TYPE_LENGTH && Character.isLetterOrDigit(message.charAt(end)))
+            end++;
+        String type = end == 0 ? OTHER : message.substring(0, end);
+        types[index] = new MessageType(message, type);
+        return type;
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((type, counter) -> snapshot.put(type, counter.sum()));
+        return snapshot;
+    }
+
+    private static Connection connection(Socket socket) {
+        Connection connection = connections.get(socket);
+        // Sockets not accepted through the patched IOServer aren't counted as connections
+        return connection != null ? connection : new Connection(false);
+    }
+
+    private static class MessageType {
+        final String message;
+        final String type;
+
+        MessageType(String message, String type) {
+            this.message = message;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Counts as inactive once either stream reaches the end, fails or is closed.
+     */
+    private static class Connection {
+        // Tells connections apart in recorded traffic
+        final int id = connectionIds.incrementAndGet();
+        // Port of the client, tells LoadGenerator which of its connections this is
+        final int remotePort;
+        private final AtomicBoolean open;
+
+        Connection(int remotePort) {
+            this.remotePort = remotePort;
+            open = new AtomicBoolean(true);
+        }
+
+        Connection(boolean counted) {
+            remotePort = 0;
+            open = new AtomicBoolean(counted);
+        }
+
+        void close() {
+            if (open.compareAndSet(true, false)) {
+                active.decrementAndGet();
+                TrafficRecorder.record(TrafficRecorder.CLOSE, id);
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final Connection connection;
+
+        CountingInputStream(InputStream in, Connection connection) {
+            super(in);
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (LoadGenerator.running()) {
+                reading.set(connection);
+                handled(decoded.get());
+            }
+            try {
+                int b = in.read();
+                if (b < 0) {
+                    connection.close();
+                } else {
+                    bytesIn.increment();
+                    TrafficRecorder.record(TrafficRecorder.RECEIVED, connection.id, b);
+                }
+                return b;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (LoadGenerator.running()) {
+                reading.set(connection);
+                handled(decoded.get());
+            }
+            try {
+                int read = in.read(b, off, len);
+                if (read < 0) {
+                    connection.close();
+                } else {
+                    bytesIn.add(read);
+                    TrafficRecorder.record(TrafficRecorder.RECEIVED, connection.id, b, off, read);
+                }
+                return read;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+            super.close();
+        }
+    }
+
+    /**
+     * Counts the bytes written to a client, and the messages by type at every
+     * line end, so only what actually goes out over the socket is counted.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Connection connection;
+        // Type of the line being written so far, same as type(String) would find
+        private final byte[] type = new byte[MAX_TYPE_LENGTH];
+        private int typeLength;
+        private boolean typeEnded;
+        // Last type counted, reused while the bytes match
+        private String lastType = OTHER;
+
+        CountingOutputStream(OutputStream out, Connection connection) {
+            super(out);
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+                bytesOut.increment();
+                scan((byte) b);
+                TrafficRecorder.record(TrafficRecorder.SENT, connection.id, b);
+                ButtonEvents.written();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+                bytesOut.add(len);
+                for (int i = off; i < off + len; i++)
+                    scan(b[i]);
+                TrafficRecorder.record(TrafficRecorder.SENT, connection.id, b, off, len);
+                ButtonEvents.written();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+            super.close();
+        }
+
+        private void scan(byte b) {
+            if (b == '\n') {
+                increment(sent, lineType());
+                typeLength = 0;
+                typeEnded = false;
+            } else if (!typeEnded) {
+                // Bytes outside ASCII end the type, like any character that isn't a letter or digit
+                if (typeLength < MAX_TYPE_LENGTH && b >= 0 && Character.isLetterOrDigit(b))
+                    type[typeLength++] = b;
+                else
+                    typeEnded = true;
+            }
+        }
+
+        private String lineType() {
+            if (typeLength == 0)
+                return OTHER;
+            if (lastType.length() == typeLength) {
+                int i = 0;
+                while (i < typeLength && lastType.charAt(i) == type[i])
+                    i++;
+                if (i == typeLength)
+                    return lastType;
+            }
+            return lastType = new String(type, 0, typeLength, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes Metrics as a JMX MBean and, when a port is configured, in the
+ * Prometheus text format on http://localhost:port/metrics. In headless mode
+ * the display state is served on http://localhost:port/state as well.
+ */
+public class MetricsExporter implements MetricsMXBean {
+    private static final String OBJECT_NAME = "com.mkempe.wsguiwrapper:type=Metrics";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private MetricsExporter() {
+    }
+
+    public static void start(Settings settings) {
+        if (!settings.metricsEnabled())
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsExporter(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Metrics: Couldn't register MBean " + OBJECT_NAME);
+        }
+
+        int port = settings.getMetricsPort();
+        if (port <= 0)
+            return;
+
+        try {
+            // Only reachable from this machine
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            if (HeadlessModel.enabled()) {
+                server.createContext("/state", exchange -> {
+                    byte[] body = HeadlessModel.dump().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+            }
+            server.setExecutor(null);
+            server.start();
+            System.out.println("Metrics: Serving http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Metrics: Couldn't listen on port " + port);
+        }
+    }
+
+    static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        metric(out, "connections_accepted_total", "counter", "Connections accepted", Metrics.getConnectionsAccepted());
+        metric(out, "connections_active", "gauge", "Connections currently open", Metrics.getConnectionsActive());
+        metric(out, "received_bytes_total", "counter", "Bytes read from clients", Metrics.getBytesReceived());
+        metric(out, "sent_bytes_total", "counter", "Bytes written to clients", Metrics.getBytesSent());
+        metric(out, "messages_received_total", "counter", "Messages read from clients by type", Metrics.getMessagesReceived());
+        metric(out, "messages_sent_total", "counter", "Messages written to clients by type", Metrics.getMessagesSent());
+        metric(out, "update_queue_depth", "gauge", "Display updates waiting for the event dispatch thread", Metrics.getQueueDepth());
+
+        summary(out, "decode_to_apply_seconds", "Time from reading a message to applying its update on the event dispatch thread",
+                Metrics.getDecodeToApply());
+        summary(out, "press_to_wire_seconds", "Time from a button press to the next write to a client",
+                Metrics.getPressToWire());
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        out.append("# HELP wsguiwrapper_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE wsguiwrapper_").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            out.append("wsguiwrapper_").append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.valueAt(quantile))).append('\n');
+        }
+        out.append("wsguiwrapper_").append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        out.append("wsguiwrapper_").append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP wsguiwrapper_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE wsguiwrapper_").append(name).append(' ').append(type).append('\n');
+        out.append("wsguiwrapper_").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, Map<String, Long> values) {
+        out.append("# HELP wsguiwrapper_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE wsguiwrapper_").append(name).append(' ').append(type).append('\n');
+        values.forEach((label, value) -> out.append("wsguiwrapper_").append(name).append("{type=\"")
+                .append(label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append("\"} ").append(value).append('\n'));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return Metrics.getConnectionsAccepted();
+    }
+
+    @Override
+    public long getConnectionsActive() {
+        return Metrics.getConnectionsActive();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return Metrics.getBytesReceived();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return Metrics.getBytesSent();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        return Metrics.getMessagesReceived();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        return Metrics.getMessagesSent();
+    }
+
+    @Override
+    public long getUpdateQueueDepth() {
+        return Metrics.getQueueDepth();
+    }
+
+    @Override
+    public long getDecodeToApplyCount() {
+        return Metrics.getDecodeToApply().getCount();
+    }
+
+    @Override
+    public long getDecodeToApplyMedianMicros() {
+        return micros(Metrics.getDecodeToApply().valueAt(0.5));
+    }
+
+    @Override
+    public long getDecodeToApply99thPercentileMicros() {
+        return micros(Metrics.getDecodeToApply().valueAt(0.99));
+    }
+
+    @Override
+    public long getDecodeToApply999thPercentileMicros() {
+        return micros(Metrics.getDecodeToApply().valueAt(0.999));
+    }
+
+    @Override
+    public long getDecodeToApplyMaxMicros() {
+        return micros(Metrics.getDecodeToApply().getMax());
+    }
+
+    @Override
+    public long getPressToWireCount() {
+        return Metrics.getPressToWire().getCount();
+    }
+
+    @Override
+    public long getPressToWireMedianMicros() {
+        return micros(Metrics.getPressToWire().valueAt(0.5));
+    }
+
+    @Override
+    public long getPressToWire99thPercentileMicros() {
+        return micros(Metrics.getPressToWire().valueAt(0.99));
+    }
+
+    @Override
+    public long getPressToWireMaxMicros() {
+        return micros(Metrics.getPressToWire().getMax());
+    }
+}
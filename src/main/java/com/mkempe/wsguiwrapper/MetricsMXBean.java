@@ -0,0 +1,84 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.util.Map;
+
+/**
+ * Metrics of the patched IOServer as exposed over JMX, registered as
+ * {@code com.mkempe.wsguiwrapper:type=Metrics}.
+ */
+public interface MetricsMXBean {
+    long getConnectionsAccepted();
+
+    long getConnectionsActive();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    /**
+     * @return messages read per type, the type being the first word of a message
+     */
+    Map<String, Long> getMessagesReceived();
+
+    /**
+     * @return messages written per type, the type being the first word of a message
+     */
+    Map<String, Long> getMessagesSent();
+
+    /**
+     * @return display updates waiting to be applied on the event dispatch thread
+     */
+    long getUpdateQueueDepth();
+
+    long getDecodeToApplyCount();
+
+    long getDecodeToApplyMedianMicros();
+
+    long getDecodeToApply99thPercentileMicros();
+
+    long getDecodeToApply999thPercentileMicros();
+
+    long getDecodeToApplyMaxMicros();
+
+    /**
+     * @return button presses followed by a write to a client
+     */
+    long getPressToWireCount();
+
+    long getPressToWireMedianMicros();
+
+    long getPressToWire99thPercentileMicros();
+
+    long getPressToWireMaxMicros();
+}
@@ -0,0 +1,80 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the display module classes on worker threads while wsDisplay starts
+ * Swing, so initComponents finds them loaded, and patched, instead of loading
+ * them one after the other on the event dispatch thread. Classes are only
+ * loaded, their static initializers still run when initComponents uses them.
+ */
+public class ModulePreloader {
+    private ModulePreloader() {
+    }
+
+    /**
+     * Called at the start of the patched wsDisplayGUI.main.
+     *
+     * @param classNames binary names of the module classes, separated by commas
+     * @param gui        the display class, its loader loads the modules
+     */
+    public static void preload(String classNames, Class<?> gui) {
+        if (!Settings.getInstance().fastStartup() || classNames.isEmpty())
+            return;
+
+        String[] names = classNames.split(",");
+        ClassLoader loader = gui.getClassLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(names.length, Runtime.getRuntime().availableProcessors())), r -> {
+                    Thread thread = new Thread(r, "wsGUIWrapper-preload");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        for (String name : names) {
+            executor.execute(() -> {
+                StartupTimeline.Phase phase = StartupTimeline.begin("preload");
+                try {
+                    Class.forName(name, false, loader);
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // initComponents reports it when it needs the class
+                } finally {
+                    phase.end(name);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Applies the registered adapter to a class, reusing previously patched
+ * bytes from the transform cache when neither the class nor the settings
+ * have changed.
+ */
+public class Patcher {
+    /**
+     * Resource present in a wsDisplay.jar that was already patched by {@link #writePatchedJar}.
+     */
+    public static final String PATCHED_MARKER = "META-INF/wsGUIWrapper.patched";
+
+    // From asm-util, which is only on the classpath for --verify and the tests
+    private static final String CHECKER = "org.objectweb.asm.util.CheckClassAdapter";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Patcher() {
+    }
+
+    /**
+     * @param className internal name of the class
+     * @param original  original classfile bytes
+     * @return patched classfile bytes, or null if the class has no adapter
+     */
+    public static byte[] patch(String className, byte[] original) {
+        AdapterRegistry.Factory adapter = AdapterRegistry.get(className);
+        if (adapter == null)
+            return null;
+
+        StartupTimeline.Phase phase = StartupTimeline.beginTransform();
+        Settings settings = Settings.getInstance();
+        if (!settings.cacheEnabled()) {
+            byte[] patched = transform(original, adapter, false);
+            phase.endTransform(className, original.length, patched.length, false);
+            return patched;
+        }
+
+        Path dir = Paths.get(settings.getCacheDirectory());
+        String prefix = className.replace('/', '.') + '-';
+        Path entry = dir.resolve(prefix + key(original, settings) + ".class");
+
+        byte[] cached = read(entry);
+        if (cached != null) {
+            phase.endTransform(className, original.length, cached.length, true);
+            return cached;
+        }
+
+        byte[] patched = transform(original, adapter, false);
+        write(dir, prefix, entry, patched);
+        phase.endTransform(className, original.length, patched.length, false);
+        return patched;
+    }
+
+    static byte[] transform(byte[] original, AdapterRegistry.Factory adapter, boolean runtimeConfig) {
+        ClassReader cr = new ClassReader(original);
+        // The adapters only insert straight-line code, so the original stack map
+        // frames stay valid and methods they don't touch are copied as is.
+        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+        cr.accept(adapter.create(cr, cw, runtimeConfig), 0);
+        return cw.toByteArray();
+    }
+
+    /**
+     * @return true if asm-util, which does the verifying, is on the classpath
+     */
+    public static boolean canVerify() {
+        try {
+            Class.forName(CHECKER, false, Patcher.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs ASM's bytecode verifier over a patched class. It's looked up at
+     * runtime, so asm-util doesn't have to ship with the wrapper.
+     *
+     * @param loader class loader used to resolve types referenced by the class
+     * @param out    receives a description of any problems found
+     * @return true if no problems were found
+     */
+    public static boolean verify(byte[] patched, ClassLoader loader, PrintWriter out) {
+        StringWriter errors = new StringWriter();
+        try {
+            Method verify = Class.forName(CHECKER, true, Patcher.class.getClassLoader())
+                    .getMethod("verify", ClassReader.class, ClassLoader.class, boolean.class, PrintWriter.class);
+            verify.invoke(null, new ClassReader(patched), loader, false, new PrintWriter(errors));
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace(new PrintWriter(errors));
+        } catch (ReflectiveOperationException e) {
+            errors.write("Couldn't run " + CHECKER + ": " + e + System.lineSeparator());
+        } catch (RuntimeException e) {
+            e.printStackTrace(new PrintWriter(errors));
+        }
+
+        out.print(errors);
+        out.flush();
+        return errors.getBuffer().length() == 0;
+    }
+
+    /**
+     * @return true if wsDisplay classes visible to the loader were patched ahead of time
+     */
+    public static boolean isPrePatched(ClassLoader loader) {
+        return loader.getResource(PATCHED_MARKER) != null;
+    }
+
+    /**
+     * Copies a wsDisplay.jar with all registered classes patched. Settings are
+     * read through RuntimeConfig when the display starts, so the jar doesn't
+     * have to be rebuilt when the config changes.
+     *
+     * @return number of classes patched
+     */
+    public static int writePatchedJar(Path source, Path target) throws IOException {
+        int count = 0;
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(source));
+             ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(target))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                // Signatures no longer match once classes are modified
+                String upper = name.toUpperCase(Locale.ROOT);
+                if (upper.startsWith("META-INF/") &&
+                        (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")))
+                    continue;
+                if (name.equals(PATCHED_MARKER))
+                    continue;
+
+                byte[] bytes = readAll(in);
+                AdapterRegistry.Factory adapter = name.endsWith(".class") ?
+                        AdapterRegistry.get(name.substring(0, name.length() - ".class".length())) : null;
+                if (adapter != null) {
+                    bytes = transform(bytes, adapter, true);
+                    count++;
+                }
+
+                out.putNextEntry(new ZipEntry(name));
+                out.write(bytes);
+                out.closeEntry();
+            }
+
+            out.putNextEntry(new ZipEntry(PATCHED_MARKER));
+            String version = Patcher.class.getPackage().getImplementationVersion();
+            out.write(String.valueOf(version).getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return count;
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[8192];
+        int length;
+        while ((length = in.read(buff)) > 0) {
+            out.write(buff, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String key(byte[] original, Settings settings) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(original);
+        md.update(settings.getDigest());
+        md.update((byte) (HeadlessModel.enabled() ? 1 : 0));
+        md.update((byte) (Agent.inPlace() ? 1 : 0));
+        // Patches change between wrapper releases as well
+        String version = Patcher.class.getPackage().getImplementationVersion();
+        if (version != null)
+            md.update(version.getBytes(StandardCharsets.UTF_8));
+
+        return hex(md.digest());
+    }
+
+    static String hex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static byte[] read(Path entry) {
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Cache: Error reading " + entry);
+            return null;
+        }
+    }
+
+    private static void write(Path dir, String prefix, Path entry, byte[] patched) {
+        try {
+            Files.createDirectories(dir);
+
+            // Remove entries for older versions of this class
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, prefix + "*.class")) {
+                for (Path path : stale)
+                    Files.deleteIfExists(path);
+            }
+
+            // Write to a temporary file first so a concurrent reader never sees a partial class
+            Path tmp = Files.createTempFile(dir, prefix, ".tmp");
+            Files.write(tmp, patched);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Cache: Error writing " + entry);
+        }
+    }
+}
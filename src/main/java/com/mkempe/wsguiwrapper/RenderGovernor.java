@@ -0,0 +1,208 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops painting display windows while they're iconified or hidden, and sets
+ * the frame rate updates are applied at, capped by ui.max_fps. Updates still
+ * reach the components while nothing is painted, so a window is repainted
+ * once, up to date, when it's shown again. While every window is hidden the
+ * updates are applied a few times a second only.
+ */
+class RenderGovernor {
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    private static final long HIDDEN_FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int refreshRate = refreshRate();
+    private static final Set<Window> windows = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final Set<Window> hidden = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static volatile boolean allHidden = false;
+    private static GovernedRepaintManager manager;
+
+    private RenderGovernor() {
+    }
+
+    /**
+     * Starts following the state of a display window.
+     */
+    static void install(Object window) {
+        if (!(window instanceof Window))
+            return;
+        Window w = (Window) window;
+        if (!windows.add(w))
+            return;
+
+        manager();
+        if (!active())
+            System.err.println("Display: Another repaint manager is installed, hidden windows are still painted");
+        if (w instanceof Frame)
+            w.addWindowStateListener(e -> update(w, e.getNewState()));
+        w.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                update(w, state(w));
+            }
+
+            @Override
+            public void componentHidden(ComponentEvent e) {
+                update(w, state(w));
+            }
+        });
+        update(w, state(w));
+    }
+
+    /**
+     * Runs an action once after the first paint during which the component
+     * was showing. Used instead of a repaint manager of its own, which would
+     * replace this one.
+     */
+    static void whenPainted(Component component, Runnable action) {
+        manager().paintListeners.add(new PaintListener(component, action));
+    }
+
+    /**
+     * @return whether repaints go through this class, so hidden windows aren't painted
+     */
+    static synchronized boolean active() {
+        return manager != null && RepaintManager.currentManager((Component) null) == manager;
+    }
+
+    private static synchronized GovernedRepaintManager manager() {
+        if (manager == null) {
+            manager = new GovernedRepaintManager();
+            RepaintManager.setCurrentManager(manager);
+        }
+        return manager;
+    }
+
+    /**
+     * @return time between two frames of UpdateQueue
+     */
+    static long frameNanos() {
+        if (allHidden)
+            return HIDDEN_FRAME_NANOS;
+
+        int maxFps = Settings.getInstance().getMaxFps();
+        int fps = maxFps > 0 ? Math.min(maxFps, refreshRate) : refreshRate;
+        return TimeUnit.SECONDS.toNanos(1) / fps;
+    }
+
+    /**
+     * @return whether the window of the component isn't painted right now
+     */
+    static boolean paused(Component component) {
+        Window window = component instanceof Window ? (Window) component : SwingUtilities.getWindowAncestor(component);
+        return window != null && !hidden.isEmpty() && hidden.contains(window);
+    }
+
+    private static int state(Window window) {
+        return window instanceof Frame ? ((Frame) window).getExtendedState() : Frame.NORMAL;
+    }
+
+    private static void update(Window window, int state) {
+        boolean paused = !window.isVisible() || (state & Frame.ICONIFIED) != 0;
+        if (paused) {
+            hidden.add(window);
+        } else if (hidden.remove(window)) {
+            window.repaint();
+        }
+
+        synchronized (windows) {
+            allHidden = !windows.isEmpty() && hidden.size() >= windows.size();
+        }
+    }
+
+    private static int refreshRate() {
+        if (GraphicsEnvironment.isHeadless())
+            return DEFAULT_REFRESH_RATE;
+
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            return rate != DisplayMode.REFRESH_RATE_UNKNOWN ? rate : DEFAULT_REFRESH_RATE;
+        } catch (RuntimeException e) {
+            return DEFAULT_REFRESH_RATE;
+        }
+    }
+
+    /**
+     * Drops repaints of hidden windows, they're repainted as a whole when shown.
+     */
+    private static class GovernedRepaintManager extends RepaintManager {
+        private final List<PaintListener> paintListeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+            if (!paused(c))
+                super.addDirtyRegion(c, x, y, w, h);
+        }
+
+        @Override
+        public void addDirtyRegion(Window window, int x, int y, int w, int h) {
+            if (!paused(window))
+                super.addDirtyRegion(window, x, y, w, h);
+        }
+
+        @Override
+        public void paintDirtyRegions() {
+            super.paintDirtyRegions();
+            if (paintListeners.isEmpty())
+                return;
+
+            for (PaintListener listener : paintListeners) {
+                if (listener.component.isShowing() && paintListeners.remove(listener))
+                    listener.action.run();
+            }
+        }
+    }
+
+    private static class PaintListener {
+        private final Component component;
+        private final Runnable action;
+
+        private PaintListener(Component component, Runnable action) {
+            this.component = component;
+            this.action = action;
+        }
+    }
+}
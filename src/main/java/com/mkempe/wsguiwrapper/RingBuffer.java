@@ -0,0 +1,119 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free queue for any number of producers and a single consumer,
+ * over slots that are created once and reused. Every slot carries a sequence
+ * number telling producers and the consumer whose turn it is, so neither side
+ * ever blocks the other. A producer claims a slot, fills it in and publishes
+ * it; the consumer polls it and releases it once it's done with the contents.
+ */
+class RingBuffer<T> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the consumer
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    RingBuffer(int capacity, Supplier<T> factory) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = factory.get();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return position of a slot the caller may fill in, -1 if the buffer is full
+     */
+    long claim() {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    return position;
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't released the slot from a lap ago yet
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long position) {
+        return (T) slots[(int) (position & mask)];
+    }
+
+    /**
+     * Hands a claimed slot to the consumer, after it was filled in.
+     */
+    void publish(long position) {
+        sequences.set((int) (position & mask), position + 1);
+    }
+
+    /**
+     * Must only be called from the consumer thread. The slot stays the
+     * consumer's until it's released.
+     *
+     * @return position of the oldest published slot, or -1 if there is none
+     */
+    long poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1)
+            return -1;
+        return head++;
+    }
+
+    /**
+     * Gives a polled slot back to the producers, from any thread.
+     */
+    void release(long position) {
+        sequences.set((int) (position & mask), position + mask + 1);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Settings lookups called from classes patched with runtime config, such as
+ * a pre-patched wsDisplay.jar. Every method falls back to the original value
+ * when the setting isn't configured, so the patched code doesn't need to branch.
+ * Only JDK types are used here, wsDisplay classes may live in another class loader.
+ */
+public class RuntimeConfig {
+    private RuntimeConfig() {
+    }
+
+    /**
+     * @return the configured LED matrix color, or the original if none is set
+     */
+    public static Color matrixColor(Color original) {
+        Color color = Settings.getInstance().getMatrixColor();
+        return color != null ? color : original;
+    }
+
+    public static void applyBorderColor(Component component) {
+        Color color = Settings.getInstance().getBorderColor();
+        if (color != null)
+            component.setBackground(color);
+    }
+
+    public static void applyTextColor(Component component) {
+        Color color = Settings.getInstance().getTextColor();
+        if (color != null)
+            component.setForeground(color);
+    }
+
+    /**
+     * @return the "modified by" label, hidden when disabled in the config
+     */
+    public static JLabel modifiedLabel() {
+        JLabel label = new JLabel(Settings.getInstance().getText());
+        LiveComponents.registerModifiedLabel(label);
+        applyTextColor(label);
+        label.setVisible(Settings.getInstance().addText());
+        return label;
+    }
+}
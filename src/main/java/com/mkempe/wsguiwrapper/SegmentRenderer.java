@@ -0,0 +1,326 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Rendering fast path for the patched segment display modules. Every segment
+ * shape is rasterized once into a shared atlas image, keyed by its outline
+ * relative to its position, its color and the antialiasing setting. Drawing a
+ * segment after that is a single copy out of the atlas, whichever module or
+ * digit it belongs to. Segment outlines are drawn in the border color from the
+ * settings, if one is set.
+ * <p>
+ * The atlas is dropped when the theme changes or it's full, and refills as
+ * segments are drawn. Anything that can't be copied pixel for pixel, e.g.
+ * scaled graphics or other paints, is drawn directly.
+ * Only JDK types are used here, wsDisplay classes may live in another class loader.
+ */
+public class SegmentRenderer {
+    private static final int ATLAS_SIZE = 1024;
+    private static final int MAX_GLYPH_SIZE = 128;
+    private static final int MAX_POINTS = 32;
+    private static final int TABLE_SIZE = 1024;
+    private static final int MAX_GLYPHS = TABLE_SIZE * 3 / 4;
+
+    private static final int FILL_POLYGON = 0;
+    private static final int DRAW_POLYGON = 1;
+    private static final int FILL_OVAL = 2;
+
+    // Only touched on the event dispatch thread
+    private static BufferedImage atlas;
+    private static final Glyph[] glyphs = new Glyph[TABLE_SIZE];
+    private static int count;
+    // Free space in the atlas, glyphs are packed in rows
+    private static int rowX, rowY, rowHeight;
+    // Position of the last glyph found, relative to the coordinates of the shape
+    private static int originX, originY;
+    private static final int[] ovalX = new int[2];
+    private static final int[] ovalY = new int[2];
+
+    private SegmentRenderer() {
+    }
+
+    /**
+     * Called by the patched segment modules in place of g.fillPolygon(xPoints, yPoints, nPoints).
+     */
+    public static void fillPolygon(Graphics g, int[] xPoints, int[] yPoints, int nPoints) {
+        Glyph glyph = glyph(g, FILL_POLYGON, g.getColor(), xPoints, yPoints, nPoints);
+        if (glyph != null)
+            draw(g, glyph);
+        else
+            g.fillPolygon(xPoints, yPoints, nPoints);
+    }
+
+    /**
+     * Called by the patched segment modules in place of g.fillPolygon(polygon).
+     */
+    public static void fillPolygon(Graphics g, Polygon polygon) {
+        fillPolygon(g, polygon.xpoints, polygon.ypoints, polygon.npoints);
+    }
+
+    /**
+     * Called by the patched segment modules in place of g.drawPolygon(xPoints, yPoints, nPoints).
+     */
+    public static void drawPolygon(Graphics g, int[] xPoints, int[] yPoints, int nPoints) {
+        Color border = Settings.getInstance().getBorderColor();
+        Color color = border != null ? border : g.getColor();
+        Glyph glyph = glyph(g, DRAW_POLYGON, color, xPoints, yPoints, nPoints);
+        if (glyph != null) {
+            draw(g, glyph);
+        } else if (border != null) {
+            Color previous = g.getColor();
+            g.setColor(border);
+            g.drawPolygon(xPoints, yPoints, nPoints);
+            g.setColor(previous);
+        } else {
+            g.drawPolygon(xPoints, yPoints, nPoints);
+        }
+    }
+
+    /**
+     * Called by the patched segment modules in place of g.drawPolygon(polygon).
+     */
+    public static void drawPolygon(Graphics g, Polygon polygon) {
+        drawPolygon(g, polygon.xpoints, polygon.ypoints, polygon.npoints);
+    }
+
+    /**
+     * Called by the patched segment modules in place of g.fillOval(x, y, width, height),
+     * e.g. for decimal points.
+     */
+    public static void fillOval(Graphics g, int x, int y, int width, int height) {
+        Glyph glyph = null;
+        if (SwingUtilities.isEventDispatchThread()) {
+            ovalX[0] = x;
+            ovalX[1] = x + width;
+            ovalY[0] = y;
+            ovalY[1] = y + height;
+            glyph = glyph(g, FILL_OVAL, g.getColor(), ovalX, ovalY, 2);
+        }
+        if (glyph != null)
+            draw(g, glyph);
+        else
+            g.fillOval(x, y, width, height);
+    }
+
+    /**
+     * Drops the atlas, called when the settings change.
+     */
+    static void themeChanged() {
+        SwingUtilities.invokeLater(SegmentRenderer::clear);
+    }
+
+    private static void clear() {
+        Arrays.fill(glyphs, null);
+        count = 0;
+        rowX = rowY = rowHeight = 0;
+        if (atlas != null) {
+            atlas.flush();
+            atlas = null;
+        }
+    }
+
+    private static void draw(Graphics g, Glyph glyph) {
+        int x = originX - glyph.margin;
+        int y = originY - glyph.margin;
+        g.drawImage(atlas, x, y, x + glyph.width, y + glyph.height,
+                glyph.x, glyph.y, glyph.x + glyph.width, glyph.y + glyph.height, null);
+    }
+
+    /**
+     * @return the glyph of the shape in the atlas, rendering it if it's new,
+     * or null to draw it directly
+     */
+    private static Glyph glyph(Graphics g, int kind, Color color, int[] xPoints, int[] yPoints, int nPoints) {
+        if (!(g instanceof Graphics2D) || nPoints <= 0 || nPoints > MAX_POINTS ||
+                xPoints.length < nPoints || yPoints.length < nPoints || !SwingUtilities.isEventDispatchThread())
+            return null;
+
+        Graphics2D g2 = (Graphics2D) g;
+        // Only a translation keeps the copy pixel for pixel the same
+        int type = g2.getTransform().getType();
+        if ((type & ~AffineTransform.TYPE_TRANSLATION) != 0 || !(g2.getPaint() instanceof Color) ||
+                !AlphaComposite.SrcOver.equals(g2.getComposite()))
+            return null;
+
+        float strokeWidth = 0;
+        if (kind == DRAW_POLYGON) {
+            Stroke stroke = g2.getStroke();
+            if (!(stroke instanceof BasicStroke) || ((BasicStroke) stroke).getDashArray() != null)
+                return null;
+            strokeWidth = ((BasicStroke) stroke).getLineWidth();
+        }
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < nPoints; i++) {
+            minX = Math.min(minX, xPoints[i]);
+            maxX = Math.max(maxX, xPoints[i]);
+            minY = Math.min(minY, yPoints[i]);
+            maxY = Math.max(maxY, yPoints[i]);
+        }
+        if (maxX - minX > MAX_GLYPH_SIZE || maxY - minY > MAX_GLYPH_SIZE)
+            return null;
+
+        Object antialiasing = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        int rgb = color.getRGB();
+        int hash = kind * 31 + rgb;
+        hash = hash * 31 + Float.floatToIntBits(strokeWidth);
+        for (int i = 0; i < nPoints; i++)
+            hash = (hash * 31 + xPoints[i] - minX) * 31 + yPoints[i] - minY;
+
+        int index = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+        Glyph glyph;
+        while ((glyph = glyphs[index]) != null) {
+            if (glyph.matches(kind, rgb, antialiasing, strokeWidth, xPoints, yPoints, nPoints, minX, minY))
+                break;
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+
+        if (glyph == null) {
+            glyph = new Glyph(kind, rgb, antialiasing, strokeWidth, xPoints, yPoints, nPoints, minX, minY, maxX, maxY);
+            if (count >= MAX_GLYPHS || !place(g2, glyph)) {
+                // Full, start over with the shapes drawn from now on
+                clear();
+                if (!place(g2, glyph))
+                    return null;
+                index = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+            }
+            render(g2, glyph, color);
+            glyphs[index] = glyph;
+            count++;
+        }
+
+        originX = minX;
+        originY = minY;
+        return glyph;
+    }
+
+    /**
+     * Finds room for the glyph in the atlas, creating the atlas if needed.
+     *
+     * @return false if the atlas is full
+     */
+    private static boolean place(Graphics2D g, Glyph glyph) {
+        if (atlas == null) {
+            GraphicsConfiguration configuration = g.getDeviceConfiguration();
+            atlas = configuration != null ?
+                    configuration.createCompatibleImage(ATLAS_SIZE, ATLAS_SIZE, Transparency.TRANSLUCENT) :
+                    new BufferedImage(ATLAS_SIZE, ATLAS_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+
+        if (rowX + glyph.width > ATLAS_SIZE) {
+            rowX = 0;
+            rowY += rowHeight;
+            rowHeight = 0;
+        }
+        if (rowY + glyph.height > ATLAS_SIZE)
+            return false;
+
+        glyph.x = rowX;
+        glyph.y = rowY;
+        rowX += glyph.width;
+        rowHeight = Math.max(rowHeight, glyph.height);
+        return true;
+    }
+
+    private static void render(Graphics2D source, Glyph glyph, Color color) {
+        Graphics2D g = atlas.createGraphics();
+        g.setRenderingHints(source.getRenderingHints());
+        g.setColor(color);
+        g.translate(glyph.x + glyph.margin, glyph.y + glyph.margin);
+        switch (glyph.kind) {
+            case FILL_POLYGON:
+                g.fillPolygon(glyph.xPoints, glyph.yPoints, glyph.xPoints.length);
+                break;
+            case DRAW_POLYGON:
+                g.setStroke(source.getStroke());
+                g.drawPolygon(glyph.xPoints, glyph.yPoints, glyph.xPoints.length);
+                break;
+            case FILL_OVAL:
+                g.fillOval(0, 0, glyph.xPoints[1], glyph.yPoints[1]);
+                break;
+        }
+        g.dispose();
+    }
+
+    /**
+     * A shape with its points relative to the top left of its bounds, and its place in the atlas.
+     */
+    private static class Glyph {
+        final int kind;
+        final int rgb;
+        final Object antialiasing;
+        final float strokeWidth;
+        final int[] xPoints;
+        final int[] yPoints;
+        // Room around the bounds for antialiasing and the stroke
+        final int margin;
+        final int width, height;
+        int x, y;
+
+        Glyph(int kind, int rgb, Object antialiasing, float strokeWidth, int[] xPoints, int[] yPoints, int nPoints,
+              int minX, int minY, int maxX, int maxY) {
+            this.kind = kind;
+            this.rgb = rgb;
+            this.antialiasing = antialiasing;
+            this.strokeWidth = strokeWidth;
+            this.xPoints = new int[nPoints];
+            this.yPoints = new int[nPoints];
+            for (int i = 0; i < nPoints; i++) {
+                this.xPoints[i] = xPoints[i] - minX;
+                this.yPoints[i] = yPoints[i] - minY;
+            }
+            this.margin = 1 + (int) Math.ceil(strokeWidth);
+            this.width = maxX - minX + 2 * margin + 1;
+            this.height = maxY - minY + 2 * margin + 1;
+        }
+
+        boolean matches(int kind, int rgb, Object antialiasing, float strokeWidth, int[] xPoints, int[] yPoints,
+                        int nPoints, int minX, int minY) {
+            if (this.kind != kind || this.rgb != rgb || this.antialiasing != antialiasing ||
+                    this.strokeWidth != strokeWidth || this.xPoints.length != nPoints)
+                return false;
+            for (int i = 0; i < nPoints; i++) {
+                if (this.xPoints[i] != xPoints[i] - minX || this.yPoints[i] != yPoints[i] - minY)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -39,21 +39,42 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Settings {
-    private static final Settings INSTANCE = new Settings();
+    // Path of the config file can be overridden with -Dwsguiwrapper.config=<path>
+    private static volatile Settings instance = new Settings();
+
+    private final Path config;
+    private boolean errors = false;
 
     private int port = 8082;
+    private int workerThreads = 1024;
     private String background = null;
     private Color textColor = null;
     private Color matrixColor = null;
     private Color borderColor = null;
     private boolean addText = true;
     private String text = "Modified by wsGUIWrapper using ASM";
+    private boolean cacheEnabled = true;
+    private String cacheDirectory = "transform-cache";
+    private boolean hotReload = true;
+    private int maxFps = 0;
+    private boolean fastStartup = false;
+    private boolean metricsEnabled = true;
+    private int metricsPort = 0;
+    private byte[] digest;
 
     private Settings() {
-        Path config = Paths.get("config.toml");
+        this(Paths.get(System.getProperty("wsguiwrapper.config", "config.toml")));
+    }
+
+    Settings(Path config) {
+        this.config = config;
         if (!config.toFile().exists()) {
+            StartupTimeline.Phase phase = StartupTimeline.begin("settings.copy");
             try {
                 InputStream is = Settings.class.getResourceAsStream("/defaultConfig.toml");
                 OutputStream os = Files.newOutputStream(config.toFile().toPath());
@@ -68,24 +89,37 @@ public class Settings {
                 os.close();
             } catch (IOException e) {
                 System.err.println("Config: Error writing default config file");
+                errors = true;
                 return;
+            } finally {
+                phase.end(config.toString());
             }
         }
 
+        StartupTimeline.Phase phase = StartupTimeline.begin("settings.parse");
         TomlParseResult toml;
         try {
             toml = Toml.parse(config);
         } catch (IOException e) {
             System.err.println("Config: Error reading config file");
+            errors = true;
             return;
+        } finally {
+            phase.end(config.toString());
         }
         toml.errors().forEach(error -> System.err.println("Config: " + error.toString()));
+        errors = toml.hasErrors();
 
         Long port = toml.getLong("network.port");
         if (port != null && port < Integer.MAX_VALUE && port > 0) {
             this.port = port.intValue();
         }
 
+        Long workerThreads = toml.getLong("network.worker_threads");
+        if (workerThreads != null && workerThreads < Integer.MAX_VALUE && workerThreads > 0) {
+            this.workerThreads = workerThreads.intValue();
+        }
+
         String background = toml.getString("ui.background");
         if (background != null && !background.isEmpty()) {
             if ((new File(background)).exists())
@@ -127,6 +161,41 @@ public class Settings {
         if (addText != null) {
             this.addText = addText;
         }
+
+        Boolean hotReload = toml.getBoolean("ui.hot_reload");
+        if (hotReload != null) {
+            this.hotReload = hotReload;
+        }
+
+        Long maxFps = toml.getLong("ui.max_fps");
+        if (maxFps != null && maxFps > 0 && maxFps <= 1000) {
+            this.maxFps = maxFps.intValue();
+        }
+
+        Boolean fastStartup = toml.getBoolean("ui.fast_startup");
+        if (fastStartup != null) {
+            this.fastStartup = fastStartup;
+        }
+
+        Boolean cacheEnabled = toml.getBoolean("cache.enabled");
+        if (cacheEnabled != null) {
+            this.cacheEnabled = cacheEnabled;
+        }
+
+        String cacheDirectory = toml.getString("cache.directory");
+        if (cacheDirectory != null && !cacheDirectory.isEmpty()) {
+            this.cacheDirectory = cacheDirectory;
+        }
+
+        Boolean metricsEnabled = toml.getBoolean("metrics.enabled");
+        if (metricsEnabled != null) {
+            this.metricsEnabled = metricsEnabled;
+        }
+
+        Long metricsPort = toml.getLong("metrics.port");
+        if (metricsPort != null && metricsPort <= 0xffff && metricsPort > 0) {
+            this.metricsPort = metricsPort.intValue();
+        }
     }
 
     public boolean verifyColor(Long color) {
@@ -134,13 +203,36 @@ public class Settings {
     }
 
     public static Settings getInstance() {
-        return INSTANCE;
+        return instance;
+    }
+
+    /**
+     * Reads the config file again. The current settings are kept if the file
+     * can't be read or has errors, e.g. when caught halfway through saving.
+     *
+     * @return true if the settings were replaced
+     */
+    public static synchronized boolean reload() {
+        Settings settings = new Settings(instance.config);
+        if (settings.errors)
+            return false;
+
+        instance = settings;
+        return true;
+    }
+
+    public Path getConfigPath() {
+        return config;
     }
 
     public int getPort() {
         return port;
     }
 
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
     public String getBackground() {
         return background;
     }
@@ -164,4 +256,75 @@ public class Settings {
     public String getText() {
         return text;
     }
+
+    public boolean hotReload() {
+        return hotReload;
+    }
+
+    /**
+     * @return highest frame rate of the display, 0 for the refresh rate of the screen
+     */
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public boolean fastStartup() {
+        return fastStartup;
+    }
+
+    public boolean cacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public boolean metricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * @return port of the Prometheus endpoint, 0 if it's disabled
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Digest of every setting that ends up in patched bytecode, used to
+     * invalidate cached classes when the config changes.
+     */
+    public synchronized byte[] getDigest() {
+        if (digest == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+                }, md));
+                out.writeInt(port);
+                out.writeUTF(String.valueOf(background));
+                writeColor(out, textColor);
+                writeColor(out, matrixColor);
+                writeColor(out, borderColor);
+                out.writeBoolean(addText);
+                out.writeUTF(text);
+                // Switches the background and main patches
+                out.writeBoolean(fastStartup);
+                out.close();
+                digest = md.digest();
+            } catch (NoSuchAlgorithmException | IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return digest.clone();
+    }
+
+    private static void writeColor(DataOutputStream out, Color color) throws IOException {
+        out.writeBoolean(color != null);
+        if (color != null)
+            out.writeInt(color.getRGB());
+    }
 }
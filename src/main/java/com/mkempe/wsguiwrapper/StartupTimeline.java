@@ -0,0 +1,149 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.mkempe.wsguiwrapper.asm.RuleSet;
+import com.mkempe.wsguiwrapper.jfr.JfrEvents;
+
+import java.awt.*;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records how long each phase of startup takes, both for --startup-report
+ * and as Flight Recorder events when the JVM supports them.
+ */
+public class StartupTimeline {
+    private static final long origin = System.nanoTime();
+    private static final boolean jfr = JfrEvents.available();
+    private static final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean firstPaintHooked = new AtomicBoolean();
+
+    private StartupTimeline() {
+    }
+
+    public static Phase begin(String name) {
+        return new Phase(name, false);
+    }
+
+    public static Phase beginTransform() {
+        return new Phase("transform", true);
+    }
+
+    public static class Phase {
+        private final String name;
+        private final boolean transform;
+        private final long start = System.nanoTime();
+        private final Object event;
+
+        private Phase(String name, boolean transform) {
+            this.name = name;
+            this.transform = transform;
+            this.event = !jfr ? null : transform ? JfrEvents.beginTransform() : JfrEvents.beginPhase();
+        }
+
+        public void end() {
+            end(null);
+        }
+
+        public void end(String detail) {
+            entries.add(new Entry(name, detail, start, System.nanoTime()));
+            if (event != null && !transform)
+                JfrEvents.endPhase(event, name, detail);
+        }
+
+        public void endTransform(String className, int bytesIn, int bytesOut, boolean cached) {
+            entries.add(new Entry(name, className + " " + bytesIn + " -> " + bytesOut + " bytes" +
+                    (cached ? " (cached)" : ""), start, System.nanoTime()));
+            if (event != null && transform)
+                JfrEvents.endTransform(event, className, bytesIn, bytesOut, cached);
+        }
+    }
+
+    /**
+     * Called by the patched wsDisplayGUI right after pack(), ends the
+     * timeline once the window has been painted for the first time.
+     */
+    public static void firstPaint(Object window) {
+        if (!(window instanceof Component) || !firstPaintHooked.compareAndSet(false, true))
+            return;
+
+        Phase phase = begin("first-paint");
+        RenderGovernor.whenPainted((Component) window, phase::end);
+    }
+
+    /**
+     * Prints the timeline when the JVM exits.
+     */
+    public static void reportOnExit(PrintStream out) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> printReport(out), "wsGUIWrapper-startup-report"));
+    }
+
+    public static void printReport(PrintStream out) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(entry -> entry.start));
+
+        out.println("Startup timeline (ms since wrapper start):");
+        out.printf("%9s %9s  %s%n", "start", "duration", "phase");
+        for (Entry entry : sorted) {
+            out.printf("%9.1f %9.1f  %s%s%n", (entry.start - origin) / 1e6, (entry.end - entry.start) / 1e6,
+                    entry.name, entry.detail != null ? " " + entry.detail : "");
+        }
+
+        Map<String, Long> rules = RuleSet.stats();
+        if (!rules.isEmpty()) {
+            out.println("Patch rules fired (classes from the transform cache aren't counted):");
+            rules.forEach((id, count) -> out.printf("%9d  %s%n", count, id));
+        }
+        out.flush();
+    }
+
+    private static class Entry {
+        final String name;
+        final String detail;
+        final long start;
+        final long end;
+
+        Entry(String name, String detail, long start, long end) {
+            this.name = name;
+            this.detail = detail;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Records all traffic of the patched IOServer to a binary log, which
+ * TrafficReplay can play back against a display. Called from the streams
+ * Metrics wraps around every connection.
+ * <p>
+ * The log starts with {@link #MAGIC} and {@link #VERSION}, followed by records of
+ * a type byte, the connection number (int), nanoseconds since recording
+ * started (long) and the length (int) and bytes of the data, all big-endian.
+ * Only JDK types are used here, wsDisplay classes may live in another class loader.
+ */
+public class TrafficRecorder {
+    static final int MAGIC = 0x57534752; // "WSGR"
+    static final short VERSION = 1;
+
+    static final byte OPEN = 0;
+    static final byte RECEIVED = 1;
+    static final byte SENT = 2;
+    static final byte CLOSE = 3;
+
+    static final int RECORD_HEADER = 1 + 4 + 8 + 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_MILLIS = 200;
+
+    private static volatile TrafficRecorder recorder;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long start = System.nanoTime();
+    private boolean failed;
+
+    private TrafficRecorder(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Starts recording to the file, replacing it if it exists. The buffered
+     * records are written every {@value #FLUSH_MILLIS} ms and on exit.
+     */
+    static void start(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE);
+        TrafficRecorder recorder = new TrafficRecorder(channel);
+        recorder.buffer.putInt(MAGIC).putShort(VERSION);
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wsGUIWrapper-traffic-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(recorder::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "wsGUIWrapper-traffic-recorder-close"));
+
+        TrafficRecorder.recorder = recorder;
+        System.out.println("Record: Writing traffic to " + path);
+    }
+
+    static boolean enabled() {
+        return recorder != null;
+    }
+
+    static void record(byte type, int connection) {
+        TrafficRecorder recorder = TrafficRecorder.recorder;
+        if (recorder != null)
+            recorder.append(type, connection, null, 0, 0);
+    }
+
+    static void record(byte type, int connection, byte[] b, int off, int len) {
+        TrafficRecorder recorder = TrafficRecorder.recorder;
+        if (recorder != null && len > 0)
+            recorder.append(type, connection, b, off, len);
+    }
+
+    static void record(byte type, int connection, int b) {
+        TrafficRecorder recorder = TrafficRecorder.recorder;
+        if (recorder != null)
+            recorder.append(type, connection, new byte[]{(byte) b}, 0, 1);
+    }
+
+    private synchronized void append(byte type, int connection, byte[] b, int off, int len) {
+        if (failed)
+            return;
+        try {
+            if (buffer.remaining() < RECORD_HEADER + len)
+                write();
+            buffer.put(type).putInt(connection).putLong(System.nanoTime() - start).putInt(len);
+            if (len > buffer.remaining()) {
+                // Larger than the buffer, write the data directly
+                write();
+                ByteBuffer data = ByteBuffer.wrap(b, off, len);
+                while (data.hasRemaining())
+                    channel.write(data);
+            } else if (len > 0) {
+                buffer.put(b, off, len);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void flush() {
+        if (failed)
+            return;
+        try {
+            write();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void fail(IOException e) {
+        // Recording must never take the display down with it
+        failed = true;
+        System.err.println("Record: Stopped recording, " + e.getMessage());
+    }
+}
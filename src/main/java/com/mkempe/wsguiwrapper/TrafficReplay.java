@@ -0,0 +1,217 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays traffic recorded by TrafficRecorder back against a display. Data
+ * clients sent is sent again over a connection of its own per recorded
+ * connection, data the display sent is only read and discarded.
+ */
+class TrafficReplay {
+    // How long to wait for the display to answer after the last record
+    private static final long DRAIN_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    // Multiple of the recorded pace, 0 to send as fast as possible
+    private final double speed;
+
+    private final Map<Integer, Socket> sockets = new HashMap<>();
+    private final List<Thread> drains = new ArrayList<>();
+    private final LongAdder bytesRead = new LongAdder();
+    private long bytesSent;
+    private long writes;
+    private int connections;
+    private long maxLag;
+
+    TrafficReplay(String host, int port, double speed) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the log and prints a summary.
+     *
+     * @return false if the log couldn't be read or the display couldn't be reached
+     */
+    boolean replay(Path log) {
+        long start = System.nanoTime();
+        // Recorded time of the first record, the time before it isn't replayed
+        long first = -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+            if (in.readInt() != TrafficRecorder.MAGIC)
+                throw new IOException("Not a traffic log");
+            short version = in.readShort();
+            if (version != TrafficRecorder.VERSION)
+                throw new IOException("Unsupported traffic log version " + version);
+
+            byte[] data = new byte[4096];
+            int type;
+            while ((type = in.read()) >= 0) {
+                int connection = in.readInt();
+                long time = in.readLong();
+                int length = in.readInt();
+                if (length > data.length)
+                    data = new byte[Math.max(length, data.length * 2)];
+                in.readFully(data, 0, length);
+
+                if (type == TrafficRecorder.SENT)
+                    continue;
+                if (first < 0)
+                    first = time;
+                await(start, time - first);
+                apply((byte) type, connection, data, length);
+            }
+        } catch (EOFException e) {
+            System.err.println("Replay: Log ends in the middle of a record, it was cut off");
+        } catch (IOException e) {
+            System.err.println("Replay: " + e.getMessage());
+            closeAll();
+            return false;
+        }
+        long elapsed = System.nanoTime() - start;
+        closeAll();
+
+        System.out.println("Replay: Sent " + bytesSent + " bytes in " + writes + " writes over " + connections +
+                " connections in " + elapsed / 1000000 + " ms (" + rate(bytesSent, elapsed) + " MB/s), read " +
+                bytesRead.sum() + " bytes" + (speed > 0 ? ", at most " + maxLag / 1000000 + " ms behind" : ""));
+        return true;
+    }
+
+    private void await(long start, long time) {
+        if (speed <= 0)
+            return;
+        long due = start + (long) (time / speed);
+        long now;
+        while ((now = System.nanoTime()) < due)
+            LockSupport.parkNanos(due - now);
+        maxLag = Math.max(maxLag, now - due);
+    }
+
+    private void apply(byte type, int connection, byte[] data, int length) throws IOException {
+        switch (type) {
+            case TrafficRecorder.OPEN:
+                socket(connection);
+                break;
+            case TrafficRecorder.RECEIVED:
+                socket(connection).getOutputStream().write(data, 0, length);
+                bytesSent += length;
+                writes++;
+                break;
+            case TrafficRecorder.CLOSE:
+                Socket socket = sockets.remove(connection);
+                if (socket != null)
+                    socket.shutdownOutput();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private Socket socket(int connection) throws IOException {
+        Socket socket = sockets.get(connection);
+        if (socket == null) {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            sockets.put(connection, socket);
+            connections++;
+            drain(socket);
+        }
+        return socket;
+    }
+
+    /**
+     * Reads what the display sends, so it never blocks on a full socket buffer.
+     */
+    private void drain(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[4096];
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0)
+                    bytesRead.add(read);
+            } catch (IOException ignored) {
+                // Closed when the replay ends
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }, "wsGUIWrapper-replay-drain");
+        thread.setDaemon(true);
+        thread.start();
+        drains.add(thread);
+    }
+
+    /**
+     * Closes the connections and waits a moment for the display to answer.
+     */
+    private void closeAll() {
+        for (Socket socket : sockets.values()) {
+            try {
+                socket.shutdownOutput();
+            } catch (IOException ignored) {
+            }
+        }
+        sockets.clear();
+
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        try {
+            for (Thread thread : drains) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0)
+                    thread.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String rate(long bytes, long nanos) {
+        return nanos == 0 ? "-" : String.format("%.1f", bytes * 1000.0 / nanos);
+    }
+}
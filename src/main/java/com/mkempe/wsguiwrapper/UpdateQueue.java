@@ -0,0 +1,540 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.swing.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries display updates from the IOServer threads to the event dispatch
+ * thread. Updates go into a ring buffer, which is drained once per frame of
+ * the display, as set by RenderGovernor. Repeated writes to the same target within a frame are folded
+ * into the latest one, and the rest is applied on the EDT as a single batch.
+ * <p>
+ * Two writes go to the same target when they call the same setter on the same
+ * component with the same arguments, except for the last one. So setText(a)
+ * and setText(b) fold, setDot(1, on) and setDot(2, on) don't. Writes aren't
+ * folded across a task, which may depend on them.
+ * <p>
+ * The arguments of a write are copied into slots of the ring buffer that are
+ * reused, primitives without boxing, and applied through a method handle per
+ * setter, so queueing a write allocates nothing once the module has been
+ * written to.
+ * <p>
+ * Reads from a display module wait for the writes queued for that module, and
+ * for tasks, to be applied, so IOServer sees its own writes. A read from a
+ * module without queued writes doesn't wait.
+ * Only JDK types are used here, wsDisplay classes may live in another class loader.
+ */
+public class UpdateQueue {
+    /**
+     * Primitive and reference arguments a setter can have to be passed in
+     * slots, setters with more are passed boxed.
+     */
+    public static final int SLOTS = 4;
+    private static final int CAPACITY = 8192;
+    // The receiver, the primitive slots and the reference slots
+    private static final MethodType APPLY = MethodType.methodType(void.class, Object.class,
+            long.class, long.class, long.class, long.class, Object.class, Object.class, Object.class, Object.class);
+    private static final MethodHandle INT_BITS_TO_FLOAT = findStatic(Float.class, "intBitsToFloat",
+            MethodType.methodType(float.class, int.class));
+    private static final MethodHandle LONG_BITS_TO_DOUBLE = findStatic(Double.class, "longBitsToDouble",
+            MethodType.methodType(double.class, long.class));
+
+    private static final RingBuffer<Update> ring = new RingBuffer<>(CAPACITY, Update::new);
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+    // Writes not applied yet by receiver, and tasks not run yet, which may write to anything
+    private static final Map<Object, AtomicInteger> pendingWrites = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger pendingTasks = new AtomicInteger();
+    private static final ScheduledExecutorService frames = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wsGUIWrapper-frames");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ClassValue<Map<String, Handler>> handlers = new ClassValue<Map<String, Handler>>() {
+        @Override
+        protected Map<String, Handler> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private UpdateQueue() {
+    }
+
+    /**
+     * Called by the patched IOServer in place of receiver.setter(args), for
+     * void setters on display modules. Primitive arguments are passed in p0
+     * to p3, floats and doubles as their raw bits, and the others in r0 to
+     * r3, both in order. Unused slots are 0 and null.
+     *
+     * @param setter name and descriptor of the setter, like setDot(IZ)V
+     * @param last   slot of the last argument, 0 to 3 for p0 to p3, 4 to 7 for r0 to r3, -1 without arguments
+     */
+    public static void post(Object receiver, String setter, int last, long p0, long p1, long p2, long p3,
+                            Object r0, Object r1, Object r2, Object r3) {
+        Objects.requireNonNull(receiver);
+        // Already on the EDT, e.g. in a batch being applied, nothing to gain from waiting
+        if (SwingUtilities.isEventDispatchThread()) {
+            apply(receiver, setter, p0, p1, p2, p3, r0, r1, r2, r3);
+            return;
+        }
+
+        Metrics.queued();
+        written(receiver).incrementAndGet();
+        long position = claim();
+        Update update = ring.get(position);
+        update.receiver = receiver;
+        update.setter = setter;
+        update.last = last;
+        long[] primitives = update.primitives;
+        primitives[0] = p0;
+        primitives[1] = p1;
+        primitives[2] = p2;
+        primitives[3] = p3;
+        Object[] references = update.references;
+        references[0] = r0;
+        references[1] = r1;
+        references[2] = r2;
+        references[3] = r3;
+        publish(position, update);
+    }
+
+    /**
+     * Called by the patched IOServer in place of receiver.name(args), for
+     * void setters on display modules with more arguments than there are slots.
+     */
+    public static void post(Object receiver, String name, String descriptor, Object[] args) {
+        Objects.requireNonNull(receiver);
+        String setter = name + descriptor;
+        if (SwingUtilities.isEventDispatchThread()) {
+            applyBoxed(receiver, setter, args);
+            return;
+        }
+
+        Metrics.queued();
+        written(receiver).incrementAndGet();
+        long position = claim();
+        Update update = ring.get(position);
+        update.receiver = receiver;
+        update.setter = setter;
+        update.args = args;
+        publish(position, update);
+    }
+
+    /**
+     * Called by the patched IOServer in place of SwingUtilities.invokeLater
+     * and EventQueue.invokeLater, so tasks stay in order with the other updates.
+     */
+    public static void invokeLater(Runnable task) {
+        Objects.requireNonNull(task);
+        Metrics.queued();
+        pendingTasks.incrementAndGet();
+        long position = claim();
+        Update update = ring.get(position);
+        update.task = task;
+        publish(position, update);
+    }
+
+    /**
+     * Called by the patched IOServer before it reads from a display module,
+     * so the read sees the writes queued for the module before it. Returns
+     * right away if there are none and no task is waiting to run, otherwise
+     * drains the ring and waits for the EDT to apply the batch.
+     */
+    public static void sync(Object receiver) {
+        if (SwingUtilities.isEventDispatchThread() || (pendingTasks.get() == 0 && pendingWrites(receiver) == 0))
+            return;
+
+        try {
+            frames.submit(UpdateQueue::drain).get();
+            // The batch drained is applied on the EDT
+            SwingUtilities.invokeAndWait(() -> {
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the count of writes to receiver not applied yet, created on its first write
+     */
+    private static AtomicInteger written(Object receiver) {
+        AtomicInteger count = pendingWrites.get(receiver);
+        return count != null ? count : pendingWrites.computeIfAbsent(receiver, r -> new AtomicInteger());
+    }
+
+    private static int pendingWrites(Object receiver) {
+        AtomicInteger count = pendingWrites.get(receiver);
+        return count != null ? count.get() : 0;
+    }
+
+    private static long claim() {
+        long position;
+        // Full, hold the producer back until the next frame made room
+        while ((position = ring.claim()) < 0) {
+            schedule();
+            LockSupport.parkNanos(RenderGovernor.frameNanos() / 4);
+        }
+        return position;
+    }
+
+    private static void publish(long position, Update update) {
+        update.position = position;
+        update.decodedAt = Metrics.decodedAt();
+        update.writtenAt = Metrics.takeWrittenAt();
+        ring.publish(position);
+        schedule();
+    }
+
+    private static void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            long frameNanos = RenderGovernor.frameNanos();
+            long delay = frameNanos - System.nanoTime() % frameNanos;
+            frames.schedule(UpdateQueue::drain, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void drain() {
+        // Cleared first, anything offered from here on schedules the next frame
+        scheduled.set(false);
+
+        List<Update> batch = new ArrayList<>();
+        long position;
+        while ((position = ring.poll()) >= 0)
+            batch.add(ring.get(position));
+        if (batch.isEmpty())
+            return;
+
+        List<Update> folded = fold(batch);
+        Metrics.folded(batch.size() - folded.size());
+        // Folded writes are painted along with the write replacing them
+        long[] writtenAt = LoadGenerator.running() ? new long[batch.size()] : null;
+        int tagged = 0;
+        for (int i = 0; writtenAt != null && i < batch.size(); i++) {
+            if (batch.get(i).writtenAt != 0)
+                writtenAt[tagged++] = batch.get(i).writtenAt;
+        }
+        int count = tagged;
+        SwingUtilities.invokeLater(() -> {
+            for (Update u : folded) {
+                u.run();
+                Metrics.applied(u.decodedAt);
+            }
+            // The slots are reused from here on, folded ones included
+            for (Update u : batch)
+                u.release();
+            if (count > 0)
+                LoadGenerator.applied(writtenAt, count);
+        });
+    }
+
+    /**
+     * Drops every write that a later write in the batch to the same target
+     * replaces before the next task, keeping the order of what's left.
+     */
+    private static List<Update> fold(List<Update> batch) {
+        Set<Update> seen = new HashSet<>();
+        ArrayList<Update> folded = new ArrayList<>(batch.size());
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Update update = batch.get(i);
+            if (update.task != null) {
+                seen.clear();
+                folded.add(update);
+            } else if (seen.add(update)) {
+                folded.add(update);
+            }
+        }
+        Collections.reverse(folded);
+        return folded;
+    }
+
+    private static void apply(Object receiver, String setter, long p0, long p1, long p2, long p3,
+                              Object r0, Object r1, Object r2, Object r3) {
+        Handler handler = handler(receiver, setter);
+        if (handler == null)
+            return;
+
+        try {
+            handler.handle.invokeExact(receiver, p0, p1, p2, p3, r0, r1, r2, r3);
+        } catch (Throwable e) {
+            System.err.println("Network: Error applying " + handler.name + " to " + receiver.getClass().getName());
+            e.printStackTrace();
+            return;
+        }
+        if (HeadlessModel.enabled())
+            HeadlessModel.record(receiver, handler.name, handler.box(p0, p1, p2, p3, r0, r1, r2, r3));
+    }
+
+    private static void applyBoxed(Object receiver, String setter, Object[] args) {
+        Handler handler = handler(receiver, setter);
+        if (handler == null)
+            return;
+
+        try {
+            handler.method.invoke(receiver, args);
+        } catch (InvocationTargetException e) {
+            System.err.println("Network: Error applying " + handler.name + " to " + receiver.getClass().getName());
+            e.getCause().printStackTrace();
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Network: Couldn't apply " + handler.name + " to " + receiver.getClass().getName());
+            e.printStackTrace();
+            return;
+        }
+        if (HeadlessModel.enabled())
+            HeadlessModel.record(receiver, handler.name, args);
+    }
+
+    /**
+     * @return the handler of the setter, created on first use, or null if it can't be found
+     */
+    private static Handler handler(Object receiver, String setter) {
+        Class<?> type = receiver.getClass();
+        Map<String, Handler> cache = handlers.get(type);
+        Handler handler = cache.get(setter);
+        if (handler == null) {
+            try {
+                int split = setter.indexOf('(');
+                handler = new Handler(method(type, setter.substring(0, split), setter.substring(split)));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Network: Couldn't apply " + setter + " to " + type.getName());
+                e.printStackTrace();
+                return null;
+            }
+            cache.put(setter, handler);
+        }
+        return handler;
+    }
+
+    private static Method method(Class<?> type, String name, String descriptor) throws ReflectiveOperationException {
+        Class<?>[] parameters = MethodType.fromMethodDescriptorString(descriptor, type.getClassLoader()).parameterArray();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod(name, parameters);
+                method.setAccessible(true);
+                return method;
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + "." + name + descriptor);
+    }
+
+    private static MethodHandle findStatic(Class<?> type, String name, MethodType methodType) {
+        try {
+            return MethodHandles.publicLookup().findStatic(type, name, methodType);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Applies one setter, either from the slots or from boxed arguments.
+     */
+    private static class Handler {
+        final String name;
+        final Method method;
+        final Class<?>[] parameters;
+        // Takes the receiver and the slots, see APPLY. Null if the arguments don't fit the slots
+        final MethodHandle handle;
+
+        Handler(Method method) throws IllegalAccessException {
+            this.name = method.getName();
+            this.method = method;
+            this.parameters = method.getParameterTypes();
+
+            MethodHandle target = MethodHandles.lookup().unreflect(method);
+            MethodType unpacked = MethodType.methodType(void.class, Object.class);
+            int[] reorder = new int[parameters.length + 1];
+            int primitives = 0, references = 0;
+            for (int i = 0; i < parameters.length; i++) {
+                Class<?> parameter = parameters[i];
+                if (parameter == float.class) {
+                    target = MethodHandles.filterArguments(target, i + 1, INT_BITS_TO_FLOAT);
+                } else if (parameter == double.class) {
+                    target = MethodHandles.filterArguments(target, i + 1, LONG_BITS_TO_DOUBLE);
+                }
+
+                if (parameter.isPrimitive()) {
+                    unpacked = unpacked.appendParameterTypes(long.class);
+                    reorder[i + 1] = 1 + primitives++;
+                } else {
+                    unpacked = unpacked.appendParameterTypes(Object.class);
+                    reorder[i + 1] = 1 + SLOTS + references++;
+                }
+            }
+
+            this.handle = primitives > SLOTS || references > SLOTS ? null :
+                    MethodHandles.permuteArguments(MethodHandles.explicitCastArguments(target, unpacked), APPLY, reorder);
+        }
+
+        /**
+         * @return the arguments in the slots, boxed for HeadlessModel
+         */
+        Object[] box(long p0, long p1, long p2, long p3, Object r0, Object r1, Object r2, Object r3) {
+            long[] primitives = {p0, p1, p2, p3};
+            Object[] references = {r0, r1, r2, r3};
+            Object[] args = new Object[parameters.length];
+            int primitive = 0, reference = 0;
+            for (int i = 0; i < parameters.length; i++)
+                args[i] = parameters[i].isPrimitive() ? unpack(parameters[i], primitives[primitive++]) : references[reference++];
+            return args;
+        }
+
+        private static Object unpack(Class<?> type, long value) {
+            if (type == boolean.class)
+                return value != 0;
+            if (type == int.class)
+                return (int) value;
+            if (type == long.class)
+                return value;
+            if (type == float.class)
+                return Float.intBitsToFloat((int) value);
+            if (type == double.class)
+                return Double.longBitsToDouble(value);
+            if (type == char.class)
+                return (char) value;
+            if (type == short.class)
+                return (short) value;
+            return (byte) value;
+        }
+    }
+
+    /**
+     * A slot of the ring buffer, filled in by post or invokeLater.
+     */
+    private static class Update implements Runnable {
+        long position;
+        Object receiver;
+        String setter;
+        // Slot of the last argument, which doesn't take part in folding
+        int last;
+        final long[] primitives = new long[SLOTS];
+        final Object[] references = new Object[SLOTS];
+        // Arguments of setters that don't fit the slots
+        Object[] args;
+        Runnable task;
+        // When the message causing this update was read
+        long decodedAt;
+        // When LoadGenerator wrote the message, only the first update made for it keeps this
+        long writtenAt;
+
+        @Override
+        public void run() {
+            if (task != null) {
+                task.run();
+            } else if (args != null) {
+                applyBoxed(receiver, setter, args);
+            } else {
+                apply(receiver, setter, primitives[0], primitives[1], primitives[2], primitives[3],
+                        references[0], references[1], references[2], references[3]);
+            }
+        }
+
+        /**
+         * Clears the slot, so it doesn't keep anything alive, and hands it back to producers.
+         */
+        void release() {
+            if (task != null)
+                pendingTasks.decrementAndGet();
+            else
+                written(receiver).decrementAndGet();
+            receiver = null;
+            setter = null;
+            Arrays.fill(primitives, 0);
+            Arrays.fill(references, null);
+            args = null;
+            task = null;
+            ring.release(position);
+        }
+
+        /**
+         * Same target, every argument but the last is equal.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Update))
+                return false;
+            Update other = (Update) o;
+            if (receiver != other.receiver || !setter.equals(other.setter))
+                return false;
+            if (args != null || other.args != null) {
+                if (args == null || other.args == null)
+                    return false;
+                for (int i = 0; i < args.length - 1; i++) {
+                    if (!Objects.equals(args[i], other.args[i]))
+                        return false;
+                }
+                return true;
+            }
+            for (int i = 0; i < SLOTS; i++) {
+                if (i != last && primitives[i] != other.primitives[i])
+                    return false;
+                if (SLOTS + i != last && !Objects.equals(references[i], other.references[i]))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(receiver) * 31 + setter.hashCode();
+            if (args != null) {
+                for (int i = 0; i < args.length - 1; i++)
+                    hash = hash * 31 + Objects.hashCode(args[i]);
+                return hash;
+            }
+            for (int i = 0; i < SLOTS; i++) {
+                if (i != last)
+                    hash = hash * 31 + Long.hashCode(primitives[i]);
+                if (SLOTS + i != last)
+                    hash = hash * 31 + Objects.hashCode(references[i]);
+            }
+            return hash;
+        }
+    }
+}
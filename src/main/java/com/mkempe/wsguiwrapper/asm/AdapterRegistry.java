@@ -0,0 +1,149 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper.asm;
+
+import com.mkempe.wsguiwrapper.Agent;
+import com.mkempe.wsguiwrapper.HeadlessModel;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+
+import java.util.*;
+
+/**
+ * Maps internal class names to the adapter that patches them. Lookups are a
+ * single hash probe on the (cached) hash code of the class name, plus a
+ * prefix check per family, so this is safe to call for every class the JVM loads.
+ */
+public class AdapterRegistry {
+    private static final Map<String, Factory> adapters = new HashMap<>();
+    private static final List<Family> families = new ArrayList<>();
+
+    static {
+        // Pre-patched jars always keep the real window
+        register("wsGUI/wsDisplayGUI", (reader, cv, runtimeConfig) -> new wsDisplayGuiAdapter(
+                HeadlessModel.enabled() && !runtimeConfig ? HeadlessWindowAdapter.wrap(reader, cv) : cv, runtimeConfig, Agent.inPlace()));
+        register("wsGUI/IOServer", (reader, cv, runtimeConfig) -> new IOServerAdapter(cv, runtimeConfig, Agent.inPlace()));
+        register("modules/LedMatrix", (reader, cv, runtimeConfig) -> new LedMatrixAdapter(
+                LazyModuleAdapter.wrap(reader, cv, runtimeConfig), runtimeConfig));
+        // Every segment display module, whatever wsDisplay calls them
+        registerFamily("modules/", "Segment", (reader, cv, runtimeConfig) -> new SegmentDisplayAdapter(
+                LazyModuleAdapter.wrap(reader, cv, runtimeConfig), runtimeConfig));
+        registerFamily("modules/", "ButtonArray", LazyModuleAdapter::wrap);
+    }
+
+    private AdapterRegistry() {
+    }
+
+    public interface Factory {
+        /**
+         * @param reader        reads the class being patched, for adapters that look at all of it first
+         * @param classVisitor  next visitor in the chain
+         * @param runtimeConfig read settings through RuntimeConfig when the class
+         *                      runs instead of inserting them as constants
+         */
+        ClassVisitor create(ClassReader reader, ClassVisitor classVisitor, boolean runtimeConfig);
+    }
+
+    /**
+     * Registers an adapter for a class. Must be called before the agent is
+     * installed, the registry is not modified afterwards.
+     *
+     * @param internalName class name in internal form, e.g. {@code wsGUI/IOServer}
+     * @param adapter      creates the adapter
+     */
+    public static synchronized void register(String internalName, Factory adapter) {
+        adapters.put(internalName, adapter);
+    }
+
+    /**
+     * Registers an adapter for every top level class directly in a package with
+     * a name containing the fragment. Same as register, must be called before
+     * the agent is installed.
+     *
+     * @param packagePrefix package in internal form with a trailing slash, e.g. {@code modules/}
+     * @param fragment      part of the simple class name
+     * @param adapter       creates the adapter
+     */
+    public static synchronized void registerFamily(String packagePrefix, String fragment, Factory adapter) {
+        families.add(new Family(packagePrefix, fragment, adapter));
+    }
+
+    /**
+     * @return the adapter factory for the class, or null if the class isn't patched
+     */
+    public static Factory get(String internalName) {
+        if (internalName == null)
+            return null;
+
+        Factory adapter = adapters.get(internalName);
+        if (adapter == null) {
+            for (Family family : families) {
+                if (family.matches(internalName))
+                    return family.adapter;
+            }
+        }
+        return adapter;
+    }
+
+    /**
+     * @return the classes registered by name, classes matching a family aren't included
+     */
+    public static Set<String> targets() {
+        return Collections.unmodifiableSet(adapters.keySet());
+    }
+
+    /**
+     * @return whether classes are matched by family, which can't be listed without looking at wsDisplay.jar
+     */
+    public static boolean hasFamilies() {
+        return !families.isEmpty();
+    }
+
+    private static class Family {
+        final String packagePrefix;
+        final String fragment;
+        final Factory adapter;
+
+        Family(String packagePrefix, String fragment, Factory adapter) {
+            this.packagePrefix = packagePrefix;
+            this.fragment = fragment;
+            this.adapter = adapter;
+        }
+
+        boolean matches(String internalName) {
+            // Neither nested classes nor classes in packages below
+            int simpleName = internalName.lastIndexOf('/') + 1;
+            return simpleName == packagePrefix.length() && internalName.startsWith(packagePrefix) &&
+                    internalName.indexOf('$', simpleName) < 0 && internalName.indexOf(fragment, simpleName) >= 0;
+        }
+    }
+}
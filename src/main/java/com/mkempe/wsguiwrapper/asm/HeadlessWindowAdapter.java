@@ -0,0 +1,220 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper.asm;
+
+import com.mkempe.wsguiwrapper.HeadlessWindow;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Makes a JFrame subclass extend HeadlessWindow instead, for headless mode.
+ * Its super constructor and super method calls are pointed at HeadlessWindow,
+ * which provides the JFrame methods without a native window. Calls on other
+ * windows the class creates or is handed are left alone.
+ * <p>
+ * A class that calls a JFrame constructor or method HeadlessWindow lacks on
+ * super, or hands a window to other code, which may be itself, wouldn't verify
+ * as a HeadlessWindow. Such classes are left as they are, see {@link #wrap}.
+ */
+public class HeadlessWindowAdapter extends ClassVisitor {
+    private static final int api = ASM9;
+    private static final Set<String> WINDOWS = new HashSet<>(Arrays.asList(
+            "javax/swing/JFrame", "java/awt/Frame", "java/awt/Window"));
+    // Name and descriptor of the constructors and methods a subclass of HeadlessWindow can call on super
+    private static final Set<String> HEADLESS_METHODS = headlessMethods();
+
+    public HeadlessWindowAdapter(ClassVisitor classVisitor) {
+        super(api, classVisitor);
+    }
+
+    /**
+     * @return an adapter for the class read by reader if every use of the window
+     * it extends can be pointed at HeadlessWindow, classVisitor otherwise
+     */
+    public static ClassVisitor wrap(ClassReader reader, ClassVisitor classVisitor) {
+        Scanner scanner = new Scanner();
+        reader.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (scanner.reason == null)
+            return new HeadlessWindowAdapter(classVisitor);
+
+        System.err.println("Headless: " + reader.getClassName() + ' ' + scanner.reason +
+                ", which HeadlessWindow can't stand in for, so it keeps its window and needs a display");
+        return classVisitor;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        if (WINDOWS.contains(superName))
+            superName = Util.HEADLESS_WINDOW;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        return new MethodVisitor(api, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+            // Windows created with new in this method whose constructor hasn't been called yet
+            private int created;
+
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+                if (opcode == NEW && WINDOWS.contains(type))
+                    created++;
+                super.visitTypeInsn(opcode, type);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                // Only invokespecial reaches the superclass on this, anything else is called on another window
+                if (opcode == INVOKESPECIAL && WINDOWS.contains(owner)) {
+                    if (name.equals("<init>") && created > 0)
+                        created--;
+                    else if (HEADLESS_METHODS.contains(name + descriptor))
+                        owner = Util.HEADLESS_WINDOW;
+                }
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            }
+        };
+    }
+
+    /**
+     * Finds the first use of the window a class extends that can't be pointed
+     * at HeadlessWindow. Errs on the safe side: any window handed to other
+     * code or called on could be the class itself.
+     */
+    private static class Scanner extends ClassVisitor {
+        String reason;
+        private boolean window;
+
+        Scanner() {
+            super(HeadlessWindowAdapter.api);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            window = WINDOWS.contains(superName);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            if (!window || reason != null)
+                return null;
+            if (isWindow(Type.getReturnType(descriptor))) {
+                reason = "returns a window from " + name;
+                return null;
+            }
+
+            return new MethodVisitor(api) {
+                private int created;
+
+                @Override
+                public void visitTypeInsn(int opcode, String type) {
+                    if (opcode == NEW && WINDOWS.contains(type))
+                        created++;
+                    else if (opcode == CHECKCAST && WINDOWS.contains(type))
+                        found("casts to " + type);
+                }
+
+                @Override
+                public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                    if ((opcode == PUTFIELD || opcode == PUTSTATIC) && isWindow(Type.getType(descriptor)))
+                        found("stores a window in " + owner + '.' + name);
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    if (opcode == INVOKESPECIAL && WINDOWS.contains(owner)) {
+                        if (name.equals("<init>") && created > 0)
+                            created--;
+                        else if (!HEADLESS_METHODS.contains(name + descriptor))
+                            found("calls " + owner + '.' + name + descriptor + " on super");
+                    } else if (WINDOWS.contains(owner)) {
+                        found("calls " + owner + '.' + name + descriptor + " on a window");
+                    }
+                    if (takesWindow(descriptor))
+                        found("passes a window to " + owner + '.' + name + descriptor);
+                }
+
+                @Override
+                public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+                    if (takesWindow(descriptor))
+                        found("passes a window to " + name + descriptor);
+                }
+
+                private void found(String use) {
+                    if (reason == null)
+                        reason = use;
+                }
+            };
+        }
+
+        private static boolean takesWindow(String descriptor) {
+            for (Type argument : Type.getArgumentTypes(descriptor)) {
+                if (isWindow(argument))
+                    return true;
+            }
+            return false;
+        }
+
+        private static boolean isWindow(Type type) {
+            return type.getSort() == Type.OBJECT && WINDOWS.contains(type.getInternalName());
+        }
+    }
+
+    private static Set<String> headlessMethods() {
+        Set<String> methods = new HashSet<>();
+        for (Constructor<?> constructor : HeadlessWindow.class.getConstructors())
+            methods.add("<init>" + Type.getConstructorDescriptor(constructor));
+        for (Class<?> c = HeadlessWindow.class; c != null; c = c.getSuperclass())
+            for (Method method : c.getDeclaredMethods())
+                if (!Modifier.isPrivate(method.getModifiers()) && !Modifier.isStatic(method.getModifiers()))
+                    methods.add(method.getName() + Type.getMethodDescriptor(method));
+        return methods;
+    }
+}
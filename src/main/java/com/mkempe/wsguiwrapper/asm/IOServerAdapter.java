@@ -31,29 +31,471 @@
 
 package com.mkempe.wsguiwrapper.asm;
 
+import com.mkempe.wsguiwrapper.HeadlessModel;
+import com.mkempe.wsguiwrapper.UpdateQueue;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.objectweb.asm.Opcodes.*;
 
 public class IOServerAdapter extends ClassVisitor {
 
     private static final int api = ASM9;
+    // UpdateQueue.post with the arguments in slots
+    private static final String POST_SLOTS = "(Ljava/lang/Object;Ljava/lang/String;IJJJJ" +
+            "Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V";
+    // The calls that are patched the same wherever they are, the rest depends on what came before them
+    private static final RuleSet RULES = rules();
+
+    private final boolean inPlace;
+    // Swing setters are recorded in HeadlessModel
+    private final boolean headless = HeadlessModel.enabled();
 
     public IOServerAdapter(ClassVisitor classVisitor) {
+        this(classVisitor, false, false);
+    }
+
+    /**
+     * The port is already set at runtime by Main, runtimeConfig makes no difference here.
+     */
+    public IOServerAdapter(ClassVisitor classVisitor, boolean runtimeConfig) {
+        this(classVisitor, runtimeConfig, false);
+    }
+
+    /**
+     * @param inPlace the class is already loaded and can't get new methods, so
+     *                getPort isn't added and setters aren't queued
+     */
+    public IOServerAdapter(ClassVisitor classVisitor, boolean runtimeConfig, boolean inPlace) {
         super(api, classVisitor);
+        this.inPlace = inPlace;
     }
 
+    private String className;
+    // Owner, name and descriptor of queued or recorded setters and synced reads to their bridge method
+    private final Map<String, String[]> bridges = new LinkedHashMap<>();
+
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        MethodVisitor mv = RULES.apply(api, super.visitMethod(access, name, descriptor, signature, exceptions), name, descriptor);
+        return new connectionMethodAdapter(api, mv, this);
+    }
+
+    private static RuleSet rules() {
+        List<PatchRule> rules = new ArrayList<>();
+        rules.add(PatchRule.replace("split", null, "java/lang/String", "split", "(Ljava/lang/String;)[Ljava/lang/String;",
+                mv -> mv.visitMethodInsn(INVOKESTATIC, Util.COMMAND_DECODER, "split",
+                        "(Ljava/lang/String;Ljava/lang/String;)[Ljava/lang/String;", false)));
+
+        // Turn on autoflush, so every println is sent right away
+        String[][] printConstructors = {{"java/io/PrintWriter", "(Ljava/io/OutputStream;)V"},
+                {"java/io/PrintWriter", "(Ljava/io/Writer;)V"}, {"java/io/PrintStream", "(Ljava/io/OutputStream;)V"}};
+        for (String[] constructor : printConstructors) {
+            rules.add(PatchRule.replace("autoflush", null, constructor[0], "<init>", constructor[1], mv -> {
+                mv.visitInsn(ICONST_1);
+                mv.visitMethodInsn(INVOKESPECIAL, constructor[0], "<init>", constructor[1].replace(")V", "Z)V"), false);
+            }));
+        }
+
+        rules.add(PatchRule.replace("newline", null, "java/io/BufferedWriter", "newLine", "()V",
+                mv -> mv.visitMethodInsn(INVOKESTATIC, Util.CONNECTION_ENGINE, "newLine", "(Ljava/io/BufferedWriter;)V", false)));
+        rules.add(PatchRule.replace("sleep", null, "java/lang/Thread", "sleep", "(J)V",
+                mv -> mv.visitMethodInsn(INVOKESTATIC, Util.BUTTON_EVENTS, "sleep", "(J)V", false)));
+
+        rules.add(PatchRule.replace("socket-input", null, "java/net/Socket", "getInputStream", "()Ljava/io/InputStream;",
+                mv -> mv.visitMethodInsn(INVOKESTATIC, Util.METRICS, "inputStream", "(Ljava/net/Socket;)Ljava/io/InputStream;", false)));
+        rules.add(PatchRule.replace("socket-output", null, "java/net/Socket", "getOutputStream", "()Ljava/io/OutputStream;",
+                mv -> mv.visitMethodInsn(INVOKESTATIC, Util.METRICS, "outputStream", "(Ljava/net/Socket;)Ljava/io/OutputStream;", false)));
+        rules.add(PatchRule.replace("socket-close", null, "java/net/Socket", "close", "()V",
+                mv -> mv.visitMethodInsn(INVOKESTATIC, Util.METRICS, "close", "(Ljava/net/Socket;)V", false)));
+
+        // Line and string reads from the client streams
+        String[][] messageReads = {{"java/io/BufferedReader", "readLine"}, {"java/io/DataInputStream", "readLine"},
+                {"java/io/DataInputStream", "readUTF"}};
+        for (String[] read : messageReads) {
+            rules.add(PatchRule.after("message-received", null, read[0], read[1], "()Ljava/lang/String;", mv -> {
+                mv.visitInsn(DUP);
+                mv.visitMethodInsn(INVOKESTATIC, Util.METRICS, "received", "(Ljava/lang/String;)V", false);
+            }));
+        }
+
+        for (String descriptor : new String[]{"(Ljava/net/SocketAddress;)V", "(Ljava/net/SocketAddress;I)V"}) {
+            rules.add(PatchRule.replace("bind", null, "java/net/ServerSocket", "bind", descriptor,
+                    mv -> mv.visitMethodInsn(INVOKESTATIC, Util.CONNECTION_ENGINE, "bind",
+                            descriptor.replace("(", "(Ljava/net/ServerSocket;"), false)));
+        }
+
+        // Keeps tasks in order with the other updates
+        for (String owner : new String[]{"javax/swing/SwingUtilities", "java/awt/EventQueue"}) {
+            rules.add(PatchRule.replace("invoke-later", null, owner, "invokeLater", "(Ljava/lang/Runnable;)V",
+                    mv -> mv.visitMethodInsn(INVOKESTATIC, Util.UPDATE_QUEUE, "invokeLater", "(Ljava/lang/Runnable;)V", false)));
+        }
+        return new RuleSet(rules);
+    }
+
+    /**
+     * @param kind "queue" to pass the call to UpdateQueue, "record" to make it and
+     *             record it in HeadlessModel, "read" to make it once the writes
+     *             queued for the receiver are applied
+     * @return name of the static method generated in visitEnd
+     */
+    private String bridge(String owner, String name, String descriptor, String kind) {
+        String[] bridge = bridges.get(owner + '.' + name + descriptor);
+        if (bridge == null) {
+            bridge = new String[]{owner, name, descriptor, "wsGUIWrapper$" + (kind.equals("read") ? "read" : "update") +
+                    bridges.size(), kind};
+            bridges.put(owner + '.' + name + descriptor, bridge);
+        }
+        return bridge[3];
+    }
+
+    @Override
+    public void visitEnd() {
+        if (inPlace) {
+            super.visitEnd();
+            return;
+        }
+
         // Generate getPort method
         MethodVisitor getPort = super.visitMethod(ACC_STATIC | ACC_PUBLIC, "getPort", "()I", null, null);
         getPort.visitCode();
-        getPort.visitFieldInsn(GETSTATIC, name, "port", "I");
+        getPort.visitFieldInsn(GETSTATIC, className, "port", "I");
         getPort.visitInsn(IRETURN);
         getPort.visitMaxs(1, 0);
         getPort.visitEnd();
 
-        super.visit(version, access, name, signature, superName, interfaces);
+        // Generate a bridge per queued setter, passing its arguments in the slots of UpdateQueue.post,
+        // per recorded setter, making the call and boxing its arguments for HeadlessModel.record,
+        // and per read, making the call after UpdateQueue.sync
+        for (String[] bridge : bridges.values()) {
+            String owner = bridge[0], name = bridge[1], descriptor = bridge[2];
+            Type[] arguments = Type.getArgumentTypes(descriptor);
+            MethodVisitor mv = super.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, bridge[3],
+                    bridgeDescriptor(owner, descriptor), null, null);
+            mv.visitCode();
+            if (bridge[4].equals("queue") && fitsSlots(arguments)) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitLdcInsn(name + descriptor);
+                mv.visitLdcInsn(lastSlot(arguments));
+                pushSlots(mv, arguments, true);
+                pushSlots(mv, arguments, false);
+                mv.visitMethodInsn(INVOKESTATIC, Util.UPDATE_QUEUE, "post", POST_SLOTS, false);
+            } else if (bridge[4].equals("queue")) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitLdcInsn(name);
+                mv.visitLdcInsn(descriptor);
+                boxArguments(mv, arguments);
+                mv.visitMethodInsn(INVOKESTATIC, Util.UPDATE_QUEUE, "post",
+                        "(Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;[Ljava/lang/Object;)V", false);
+            } else if (bridge[4].equals("read")) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitMethodInsn(INVOKESTATIC, Util.UPDATE_QUEUE, "sync", "(Ljava/lang/Object;)V", false);
+                mv.visitVarInsn(ALOAD, 0);
+                int local = 1;
+                for (Type argument : arguments) {
+                    mv.visitVarInsn(argument.getOpcode(ILOAD), local);
+                    local += argument.getSize();
+                }
+                mv.visitMethodInsn(INVOKEVIRTUAL, owner, name, descriptor, false);
+            } else {
+                mv.visitVarInsn(ALOAD, 0);
+                int local = 1;
+                for (Type argument : arguments) {
+                    mv.visitVarInsn(argument.getOpcode(ILOAD), local);
+                    local += argument.getSize();
+                }
+                mv.visitMethodInsn(INVOKEVIRTUAL, owner, name, descriptor, false);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitLdcInsn(name);
+                boxArguments(mv, arguments);
+                mv.visitMethodInsn(INVOKESTATIC, Util.HEADLESS_MODEL, "record",
+                        "(Ljava/lang/Object;Ljava/lang/String;[Ljava/lang/Object;)V", false);
+            }
+            mv.visitInsn(Type.getReturnType(descriptor).getOpcode(IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        super.visitEnd();
+    }
+
+    private static boolean fitsSlots(Type[] arguments) {
+        int primitives = 0;
+        for (Type argument : arguments) {
+            if (isPrimitive(argument))
+                primitives++;
+        }
+        return primitives <= UpdateQueue.SLOTS && arguments.length - primitives <= UpdateQueue.SLOTS;
+    }
+
+    /**
+     * @return slot of the last argument as UpdateQueue.post numbers them, -1 without arguments
+     */
+    private static int lastSlot(Type[] arguments) {
+        if (arguments.length == 0)
+            return -1;
+        boolean primitive = isPrimitive(arguments[arguments.length - 1]);
+        int slot = primitive ? -1 : UpdateQueue.SLOTS - 1;
+        for (Type argument : arguments) {
+            if (isPrimitive(argument) == primitive)
+                slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Pushes the primitive arguments of a bridge, starting at local 1, as longs,
+     * or its reference arguments, followed by empty slots.
+     */
+    private static void pushSlots(MethodVisitor mv, Type[] arguments, boolean primitives) {
+        int local = 1;
+        int slots = 0;
+        for (Type argument : arguments) {
+            if (isPrimitive(argument) == primitives) {
+                mv.visitVarInsn(argument.getOpcode(ILOAD), local);
+                if (primitives)
+                    toLong(mv, argument);
+                slots++;
+            }
+            local += argument.getSize();
+        }
+        for (; slots < UpdateQueue.SLOTS; slots++)
+            mv.visitInsn(primitives ? LCONST_0 : ACONST_NULL);
+    }
+
+    /**
+     * Widens a primitive to a long, floats and doubles as their raw bits.
+     */
+    private static void toLong(MethodVisitor mv, Type type) {
+        switch (type.getSort()) {
+            case Type.LONG:
+                break;
+            case Type.FLOAT:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+                mv.visitInsn(I2L);
+                break;
+            case Type.DOUBLE:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+                break;
+            default:
+                mv.visitInsn(I2L);
+        }
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY;
+    }
+
+    /**
+     * Pushes the arguments of a bridge, starting at local 1, as an Object[].
+     */
+    private static void boxArguments(MethodVisitor mv, Type[] arguments) {
+        mv.visitLdcInsn(arguments.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        int local = 1;
+        for (int i = 0; i < arguments.length; i++) {
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(i);
+            mv.visitVarInsn(arguments[i].getOpcode(ILOAD), local);
+            Util.box(mv, arguments[i]);
+            mv.visitInsn(AASTORE);
+            local += arguments[i].getSize();
+        }
+    }
+
+    private static String bridgeDescriptor(String owner, String descriptor) {
+        return "(L" + owner + ';' + descriptor.substring(1);
+    }
+
+    /**
+     * Hands the client threads IOServer starts and its server socket to ConnectionEngine,
+     * and the updates it makes to display modules to UpdateQueue. Connections,
+     * traffic and messages are counted in Metrics. Messages are flushed as soon
+     * as they're complete and sleeps end early on button events. Readers and
+     * splitting of messages go through CommandDecoder.
+     */
+    protected static class connectionMethodAdapter extends MethodVisitor {
+        private final IOServerAdapter adapter;
+        private boolean skipDup = false;
+        // Threads started after accept() serve a client, others are left alone
+        private boolean accepted = false;
+        // The last instruction constructed a plain Thread, which nothing can have a reference to yet
+        private boolean carrier = false;
+
+        protected connectionMethodAdapter(int api, MethodVisitor methodVisitor, IOServerAdapter adapter) {
+            super(api, methodVisitor);
+            this.adapter = adapter;
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            carrier = false;
+            // ConnectionEngine creates the server socket and CommandDecoder the readers, drop the NEW and the DUP after it
+            if (opcode == NEW && isCreatedStatically(type)) {
+                skipDup = true;
+                return;
+            }
+
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            carrier = false;
+            if (skipDup && opcode == DUP) {
+                skipDup = false;
+                return;
+            }
+
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            carrier = false;
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            carrier = false;
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            carrier = false;
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            carrier = false;
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            carrier = false;
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            carrier = false;
+            super.visitLdcInsn(value);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            carrier = false;
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            carrier = false;
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            carrier = false;
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            carrier = false;
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+        }
+
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            // Another path may jump here with a thread of its own on the stack
+            carrier = false;
+            super.visitFrame(type, numLocal, local, numStack, stack);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            boolean constructed = carrier;
+            carrier = false;
+            if (opcode == INVOKESPECIAL && owner.equals("java/net/ServerSocket") && name.equals("<init>")) {
+                mv.visitMethodInsn(INVOKESTATIC, Util.CONNECTION_ENGINE, "serverSocket",
+                        descriptor.replace(")V", ")Ljava/net/ServerSocket;"), false);
+            } else if (opcode == INVOKESPECIAL && owner.equals("java/io/InputStreamReader") && name.equals("<init>")) {
+                mv.visitMethodInsn(INVOKESTATIC, Util.COMMAND_DECODER, "inputStreamReader",
+                        descriptor.replace(")V", ")Ljava/io/InputStreamReader;"), false);
+            } else if (opcode == INVOKESPECIAL && owner.equals("java/io/BufferedReader") && name.equals("<init>")) {
+                mv.visitMethodInsn(INVOKESTATIC, Util.COMMAND_DECODER, "bufferedReader",
+                        descriptor.replace(")V", ")Ljava/io/BufferedReader;"), false);
+            } else if (opcode == INVOKEVIRTUAL && owner.equals("java/net/ServerSocket") && name.equals("accept")) {
+                accepted = true;
+                mv.visitMethodInsn(INVOKESTATIC, Util.METRICS, "accept", "(Ljava/net/ServerSocket;)Ljava/net/Socket;", false);
+            } else if (accepted && constructed && opcode == INVOKEVIRTUAL && owner.equals("java/lang/Thread") &&
+                    name.equals("start") && descriptor.equals("()V")) {
+                // Only a thread started right where it's constructed, nothing can tell it never ran itself.
+                // Thread subclasses and threads IOServer keeps are started as they are.
+                mv.visitMethodInsn(INVOKESTATIC, Util.CONNECTION_ENGINE, "start", "(Ljava/lang/Thread;)V", false);
+            } else if (opcode == INVOKEVIRTUAL && !adapter.inPlace && isModuleSetter(owner, name, descriptor)) {
+                mv.visitMethodInsn(INVOKESTATIC, adapter.className, adapter.bridge(owner, name, descriptor, "queue"),
+                        bridgeDescriptor(owner, descriptor), false);
+            } else if (opcode == INVOKEVIRTUAL && !adapter.inPlace && adapter.headless && isComponentSetter(owner, name, descriptor)) {
+                mv.visitMethodInsn(INVOKESTATIC, adapter.className, adapter.bridge(owner, name, descriptor, "record"),
+                        bridgeDescriptor(owner, descriptor), false);
+            } else if (opcode == INVOKEVIRTUAL && !adapter.inPlace && isModuleRead(owner, descriptor)) {
+                // Apply the writes queued for the module first
+                mv.visitMethodInsn(INVOKESTATIC, adapter.className, adapter.bridge(owner, name, descriptor, "read"),
+                        bridgeDescriptor(owner, descriptor), false);
+            } else {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            }
+            carrier = opcode == INVOKESPECIAL && owner.equals("java/lang/Thread") && name.equals("<init>");
+        }
+
+        /**
+         * Types created by a static method instead of their constructor.
+         */
+        private static boolean isCreatedStatically(String type) {
+            return type.equals("java/net/ServerSocket") || type.equals("java/io/InputStreamReader") ||
+                    type.equals("java/io/BufferedReader");
+        }
+
+        /**
+         * Void setters on wsDisplay modules, the LED matrix, segment displays and outputs.
+         */
+        private static boolean isModuleSetter(String owner, String name, String descriptor) {
+            return owner.startsWith("modules/") && name.startsWith("set") && descriptor.endsWith(")V");
+        }
+
+        /**
+         * Void setters on Swing components, such as the labels.
+         */
+        private static boolean isComponentSetter(String owner, String name, String descriptor) {
+            return name.startsWith("set") && descriptor.endsWith(")V") && (owner.startsWith("javax/swing/") ||
+                    owner.equals("java/awt/Component") || owner.equals("java/awt/Container"));
+        }
+
+        /**
+         * Calls returning something from a wsDisplay module.
+         */
+        private static boolean isModuleRead(String owner, String descriptor) {
+            return owner.startsWith("modules/") && !descriptor.endsWith(")V");
+        }
     }
 }
@@ -0,0 +1,469 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper.asm;
+
+import com.mkempe.wsguiwrapper.Agent;
+import com.mkempe.wsguiwrapper.Settings;
+import org.objectweb.asm.*;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Lets a display module be built lazily, for fast startup. Its constructor
+ * only calls super() and hands the module to LazyModules, the rest of it is
+ * moved to wsGUIWrapper$build, which LazyModules runs right away or once the
+ * module is first painted or used. Until then the module is an empty
+ * placeholder: the methods it declares build it first, except paint methods,
+ * which only paint the background, and the preferred size and the Swing
+ * properties set on it are handled by methods added here, see LazyModules.
+ * <p>
+ * Only a module extending a Swing component with a single constructor without
+ * arguments can be split like that, see {@link #wrap}.
+ */
+public class LazyModuleAdapter extends ClassVisitor {
+    private static final int api = ASM9;
+    private static final String STATE = "wsGUIWrapper$state";
+    // Setters of the Swing properties set on modules, replayed once a placeholder is built
+    private static final String[][] SETTERS = {
+            {"setBackground", "(Ljava/awt/Color;)V"}, {"setForeground", "(Ljava/awt/Color;)V"},
+            {"setFont", "(Ljava/awt/Font;)V"}, {"setBorder", "(Ljavax/swing/border/Border;)V"},
+            {"setEnabled", "(Z)V"}, {"setVisible", "(Z)V"}, {"setOpaque", "(Z)V"},
+            {"setToolTipText", "(Ljava/lang/String;)V"}, {"setName", "(Ljava/lang/String;)V"},
+            {"setPreferredSize", "(Ljava/awt/Dimension;)V"}, {"setMinimumSize", "(Ljava/awt/Dimension;)V"},
+            {"setMaximumSize", "(Ljava/awt/Dimension;)V"}};
+    private static final String PAINT = "(Ljava/awt/Graphics;)V";
+
+    private final String key;
+    // Name and descriptor of the methods the class declares
+    private final Set<String> declared;
+    private String className;
+    private String superName;
+    private boolean frames;
+
+    private LazyModuleAdapter(ClassVisitor classVisitor, String key, Set<String> declared) {
+        super(api, classVisitor);
+        this.key = key;
+        this.declared = declared;
+    }
+
+    /**
+     * @return an adapter building the module read by reader lazily if fast
+     * startup can be turned on and the module can be split, classVisitor otherwise
+     */
+    public static ClassVisitor wrap(ClassReader reader, ClassVisitor classVisitor, boolean runtimeConfig) {
+        // Methods and fields can't be added to classes that are already loaded
+        if (Agent.inPlace() || !(runtimeConfig || Settings.getInstance().fastStartup()))
+            return classVisitor;
+
+        Scanner scanner = new Scanner();
+        reader.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (scanner.reason == null)
+            return new LazyModuleAdapter(classVisitor,
+                    reader.getClassName() + '@' + Integer.toHexString(scanner.hash), scanner.declared);
+
+        System.err.println("Fast startup: " + reader.getClassName() + ' ' + scanner.reason +
+                ", so it's built up front");
+        return classVisitor;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+        this.superName = superName;
+        frames = (version & 0xFFFF) >= V1_6;
+
+        String[] lazy = Arrays.copyOf(interfaces, interfaces.length + 1);
+        lazy[interfaces.length] = Util.LAZY_MODULE;
+        super.visit(version, access, name, signature, superName, lazy);
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        // Instance fields are set by wsGUIWrapper$build now
+        if ((access & ACC_STATIC) == 0)
+            access &= ~ACC_FINAL;
+        return super.visitField(access, name, descriptor, signature, value);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        if (name.equals("<init>"))
+            return new constructorMethodAdapter(mv, buildMethod());
+        if ((access & (ACC_STATIC | ACC_PRIVATE)) != 0 || name.equals("<clinit>"))
+            return mv;
+
+        boolean paint = (name.equals("paint") || name.equals("paintComponent")) && descriptor.equals(PAINT);
+        return new MethodVisitor(api, mv) {
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                if (paint) {
+                    // A placeholder only paints what its superclass paints
+                    Label built = new Label();
+                    ifPainting(mv, built);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitMethodInsn(INVOKESPECIAL, superName, name, PAINT, false);
+                    mv.visitInsn(RETURN);
+                    mv.visitLabel(built);
+                    sameFrame(mv);
+                } else {
+                    Util.insertThisHook(mv, Util.LAZY_MODULES, "ensureBuilt");
+                }
+            }
+        };
+    }
+
+    @Override
+    public void visitEnd() {
+        FieldVisitor fv = super.visitField(ACC_PRIVATE | ACC_VOLATILE | ACC_SYNTHETIC, STATE, "I", null, null);
+        fv.visitEnd();
+
+        MethodVisitor mv = super.visitMethod(ACC_PUBLIC, STATE, "()I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, STATE, "I");
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = super.visitMethod(ACC_PUBLIC, "wsGUIWrapper$defer", "()V", null, null);
+        mv.visitCode();
+        setState(mv, 1);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if (!declared.contains("paintComponent" + PAINT))
+            addPaintComponent();
+        if (!declared.contains("getPreferredSize()Ljava/awt/Dimension;"))
+            addGetPreferredSize();
+        for (String[] setter : SETTERS) {
+            if (!declared.contains(setter[0] + setter[1]))
+                addSetter(setter[0], setter[1]);
+        }
+
+        super.visitEnd();
+    }
+
+    /**
+     * Starts wsGUIWrapper$build, which returns if the module is built and marks it built otherwise.
+     */
+    private MethodVisitor buildMethod() {
+        MethodVisitor mv = super.visitMethod(ACC_PUBLIC, "wsGUIWrapper$build", "()V", null, null);
+        mv.visitCode();
+        Label build = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, STATE, "I");
+        mv.visitInsn(ICONST_2);
+        mv.visitJumpInsn(IF_ICMPNE, build);
+        mv.visitInsn(RETURN);
+        mv.visitLabel(build);
+        sameFrame(mv);
+        setState(mv, 2);
+        return mv;
+    }
+
+    private void addPaintComponent() {
+        MethodVisitor mv = super.visitMethod(ACC_PROTECTED, "paintComponent", PAINT, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESTATIC, Util.LAZY_MODULES, "painting", "(Ljava/lang/Object;)Z", false);
+        mv.visitInsn(POP);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "paintComponent", PAINT, false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void addGetPreferredSize() {
+        MethodVisitor mv = super.visitMethod(ACC_PUBLIC, "getPreferredSize", "()Ljava/awt/Dimension;", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "getPreferredSize", "()Ljava/awt/Dimension;", false);
+        mv.visitMethodInsn(INVOKESTATIC, Util.LAZY_MODULES, "preferredSize",
+                "(Ljava/lang/Object;Ljava/awt/Dimension;)Ljava/awt/Dimension;", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void addSetter(String name, String descriptor) {
+        Type value = Type.getArgumentTypes(descriptor)[0];
+        MethodVisitor mv = super.visitMethod(ACC_PUBLIC, name, descriptor, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(value.getOpcode(ILOAD), 1);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, name, descriptor, false);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitLdcInsn(name + descriptor);
+        mv.visitVarInsn(value.getOpcode(ILOAD), 1);
+        Util.box(mv, value);
+        mv.visitMethodInsn(INVOKESTATIC, Util.LAZY_MODULES, "set", "(Ljava/lang/Object;Ljava/lang/String;Ljava/lang/Object;)V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void ifPainting(MethodVisitor mv, Label built) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESTATIC, Util.LAZY_MODULES, "painting", "(Ljava/lang/Object;)Z", false);
+        mv.visitJumpInsn(IFEQ, built);
+    }
+
+    private void setState(MethodVisitor mv, int state) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_0 + state);
+        mv.visitFieldInsn(PUTFIELD, className, STATE, "I");
+    }
+
+    /**
+     * Marks a jump target in the added code, the locals are the arguments and the stack is empty.
+     */
+    private void sameFrame(MethodVisitor mv) {
+        if (frames)
+            mv.visitFrame(F_SAME, 0, null, 0, null);
+        // Keeps a frame of the original code from landing on the same offset
+        mv.visitInsn(NOP);
+    }
+
+    /**
+     * Ends the constructor right after super(), the rest of it goes to wsGUIWrapper$build.
+     */
+    private class constructorMethodAdapter extends MethodVisitor {
+        private final MethodVisitor constructor;
+        private final MethodVisitor build;
+
+        constructorMethodAdapter(MethodVisitor constructor, MethodVisitor build) {
+            super(LazyModuleAdapter.api, constructor);
+            this.constructor = constructor;
+            this.build = build;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            if (mv == constructor && opcode == INVOKESPECIAL && name.equals("<init>")) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitLdcInsn(key);
+                mv.visitMethodInsn(INVOKESTATIC, Util.LAZY_MODULES, "created", "(Ljava/lang/Object;Ljava/lang/String;)V", false);
+                mv.visitInsn(RETURN);
+                mv = build;
+            }
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            // Visited before the code, Java can't put super() in a try block
+            build.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        @Override
+        public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            return build.visitTryCatchAnnotation(typeRef, typePath, descriptor, visible);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+            // Their ranges span both methods
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end, int[] index, String descriptor, boolean visible) {
+            return null;
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            constructor.visitMaxs(maxStack, maxLocals);
+            build.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitEnd() {
+            constructor.visitEnd();
+            build.visitEnd();
+        }
+    }
+
+    /**
+     * Finds the first reason the class can't be split, collects the methods it
+     * declares and hashes its code, the size is remembered by the hash.
+     */
+    private static class Scanner extends ClassVisitor {
+        final Set<String> declared = new HashSet<>();
+        String reason;
+        int hash;
+        private String superName;
+        private int constructors;
+
+        Scanner() {
+            super(LazyModuleAdapter.api);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.superName = superName;
+            if ((access & (ACC_INTERFACE | ACC_ABSTRACT | ACC_ENUM)) != 0)
+                reason = "is abstract";
+            else if (!isSwingComponent(superName))
+                reason = "extends " + superName;
+            hash = name.hashCode();
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            declared.add(name + descriptor);
+            hash = 31 * hash + (name + descriptor).hashCode();
+            boolean constructor = name.equals("<init>");
+            if (constructor && ++constructors > 1)
+                found("has more than one constructor");
+            else if (constructor && !descriptor.equals("()V"))
+                found("has a constructor with arguments");
+
+            return new MethodVisitor(api) {
+                // Instructions visited so far, the constructor has to start with super()
+                private int count;
+
+                @Override
+                public void visitVarInsn(int opcode, int varIndex) {
+                    instruction(opcode, varIndex);
+                    if (constructor && count == 1 && (opcode != ALOAD || varIndex != 0))
+                        found("doesn't call super() first");
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    instruction(opcode, (owner + '.' + name + descriptor).hashCode());
+                    if (constructor && count == 2 && (opcode != INVOKESPECIAL || !owner.equals(superName) ||
+                            !name.equals("<init>") || !descriptor.equals("()V")))
+                        found("doesn't call super() first");
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    instruction(opcode, 0);
+                }
+
+                @Override
+                public void visitIntInsn(int opcode, int operand) {
+                    instruction(opcode, operand);
+                }
+
+                @Override
+                public void visitTypeInsn(int opcode, String type) {
+                    instruction(opcode, type.hashCode());
+                }
+
+                @Override
+                public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                    instruction(opcode, (owner + '.' + name).hashCode());
+                }
+
+                @Override
+                public void visitLdcInsn(Object value) {
+                    instruction(LDC, value.hashCode());
+                }
+
+                @Override
+                public void visitIincInsn(int varIndex, int increment) {
+                    instruction(IINC, 31 * varIndex + increment);
+                }
+
+                @Override
+                public void visitJumpInsn(int opcode, Label label) {
+                    instruction(opcode, 0);
+                }
+
+                @Override
+                public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+                    instruction(INVOKEDYNAMIC, (name + descriptor).hashCode());
+                }
+
+                @Override
+                public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+                    instruction(TABLESWITCH, 31 * min + max);
+                }
+
+                @Override
+                public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+                    instruction(LOOKUPSWITCH, Arrays.hashCode(keys));
+                }
+
+                @Override
+                public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+                    instruction(MULTIANEWARRAY, descriptor.hashCode());
+                }
+
+                private void instruction(int opcode, int operand) {
+                    count++;
+                    hash = 31 * (31 * hash + opcode) + operand;
+                    if (constructor && count == 1 && opcode != ALOAD)
+                        found("doesn't call super() first");
+                    else if (constructor && count == 2 && opcode != INVOKESPECIAL)
+                        found("doesn't call super() first");
+                }
+            };
+        }
+
+        @Override
+        public void visitEnd() {
+            if (constructors == 0)
+                found("has no constructor");
+        }
+
+        private void found(String why) {
+            if (reason == null)
+                reason = why;
+        }
+
+        private static boolean isSwingComponent(String superName) {
+            if (!superName.startsWith("javax/swing/"))
+                return false;
+            try {
+                // Swing classes come from the boot loader, whatever loads the module
+                return JComponent.class.isAssignableFrom(Class.forName(superName.replace('/', '.'), false, null));
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -36,42 +36,139 @@ import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.objectweb.asm.Opcodes.*;
 
 public class LedMatrixAdapter extends ClassVisitor {
     private static final int api = ASM9;
+    private static final RuleSet RENDER_RULES = renderRules();
+    private final boolean runtimeConfig;
+    private boolean constants;
 
     public LedMatrixAdapter(ClassVisitor classVisitor) {
+        this(classVisitor, false);
+    }
+
+    /**
+     * @param runtimeConfig read settings through RuntimeConfig when the class
+     *                      runs instead of inserting them as constants
+     */
+    public LedMatrixAdapter(ClassVisitor classVisitor, boolean runtimeConfig) {
         super(api, classVisitor);
+        this.runtimeConfig = runtimeConfig;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        constants = Util.supportsConstants(version);
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
         if (name.equals("<init>"))
-            return new initMethodAdapter(api, mv);
+            return new initMethodAdapter(api, mv, runtimeConfig, constants);
+        if ((access & ACC_STATIC) == 0)
+            return new renderMethodAdapter(api, RENDER_RULES.apply(api, mv, name, descriptor),
+                    name.equals("paintComponent") && descriptor.equals("(Ljava/awt/Graphics;)V"));
 
         return mv;
     }
 
     protected static class initMethodAdapter extends MethodVisitor {
-        protected initMethodAdapter(int api, MethodVisitor methodVisitor) {
+        private final boolean runtimeConfig;
+        private final boolean constants;
+
+        protected initMethodAdapter(int api, MethodVisitor methodVisitor, boolean runtimeConfig, boolean constants) {
             super(api, methodVisitor);
+            this.runtimeConfig = runtimeConfig;
+            this.constants = constants;
         }
 
         @Override
         public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
-            if (Settings.getInstance().getMatrixColor() != null && opcode == PUTFIELD && owner.equals("modules/LedMatrix") &&
+            if (opcode == PUTFIELD && owner.equals("modules/LedMatrix") &&
+                    name.equals("onDotColor") && descriptor.equals("Ljava/awt/Color;")) {
+                // Keeps the stock color, to restore it when the matrix color is removed
+                mv.visitInsn(DUP2);
+                mv.visitMethodInsn(INVOKESTATIC, Util.LIVE_COMPONENTS, "registerDotColor", "(Ljava/lang/Object;Ljava/awt/Color;)V", false);
+            }
+
+            if (runtimeConfig && opcode == PUTFIELD && owner.equals("modules/LedMatrix") &&
+                    name.equals("onDotColor") && descriptor.equals("Ljava/awt/Color;")) {
+
+                mv.visitMethodInsn(INVOKESTATIC, Util.RUNTIME_CONFIG, "matrixColor", "(Ljava/awt/Color;)Ljava/awt/Color;", false);
+
+            } else if (Settings.getInstance().getMatrixColor() != null && opcode == PUTFIELD && owner.equals("modules/LedMatrix") &&
                     name.equals("onDotColor") && descriptor.equals("Ljava/awt/Color;")) {
 
                 mv.visitInsn(POP);
                 Color matrixColor = Settings.getInstance().getMatrixColor();
-                Util.insertColor(mv, matrixColor.getRed(), matrixColor.getGreen(), matrixColor.getBlue());
+                Util.insertColor(mv, constants, matrixColor.getRed(), matrixColor.getGreen(), matrixColor.getBlue());
 
             }
 
             super.visitFieldInsn(opcode, owner, name, descriptor);
         }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode == RETURN) {
+                // Lets the matrix color be changed when the config is reloaded
+                Util.insertThisHook(mv, Util.LIVE_COMPONENTS, "registerMatrix");
+            }
+
+            super.visitInsn(opcode);
+        }
+    }
+
+    /**
+     * Routes repaints and dot drawing through LedMatrixRenderer, so only dots
+     * that changed are repainted and dots are drawn from cached sprites.
+     */
+    private static RuleSet renderRules() {
+        List<PatchRule> rules = new ArrayList<>();
+        for (String owner : new String[]{"modules/LedMatrix", "javax/swing/JPanel", "javax/swing/JComponent",
+                "java/awt/Container", "java/awt/Component"}) {
+            rules.add(PatchRule.replace("matrix-repaint", null, owner, "repaint", "()V",
+                    mv -> mv.visitMethodInsn(INVOKESTATIC, Util.LED_MATRIX_RENDERER, "repaint", "(Ljava/lang/Object;)V", false)));
+        }
+        for (String owner : new String[]{"java/awt/Graphics", "java/awt/Graphics2D"}) {
+            rules.add(PatchRule.replace("matrix-dot", null, owner, "fillOval", "(IIII)V", mv -> {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitMethodInsn(INVOKESTATIC, Util.LED_MATRIX_RENDERER, "fillOval", "(Ljava/awt/Graphics;IIIILjava/lang/Object;)V", false);
+            }));
+        }
+        return new RuleSet(rules);
+    }
+
+    /**
+     * Wraps paintComponent in the paint hooks of LedMatrixRenderer, the calls are patched by the render rules.
+     */
+    protected static class renderMethodAdapter extends MethodVisitor {
+        private final boolean paintComponent;
+
+        protected renderMethodAdapter(int api, MethodVisitor methodVisitor, boolean paintComponent) {
+            super(api, methodVisitor);
+            this.paintComponent = paintComponent;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            if (paintComponent)
+                Util.insertThisHook(mv, Util.LED_MATRIX_RENDERER, "beginPaint");
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (paintComponent && opcode == RETURN)
+                Util.insertThisHook(mv, Util.LED_MATRIX_RENDERER, "endPaint");
+
+            super.visitInsn(opcode);
+        }
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper.asm;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A patch at the calls to one method: code is inserted before or after the
+ * call, or the call is replaced or deleted. Rules are compiled into a RuleSet,
+ * which applies them while the class is read.
+ */
+public class PatchRule {
+    public enum Action {
+        /**
+         * Insert code before the call, it must leave the stack as it found it.
+         */
+        BEFORE,
+        /**
+         * Insert code after the call, it must leave the stack as it found it.
+         */
+        AFTER,
+        /**
+         * Replace the call, the code takes its arguments and leaves its result.
+         */
+        REPLACE,
+        /**
+         * Remove a call to a void method and its arguments.
+         */
+        DELETE
+    }
+
+    public interface Emitter {
+        void emit(MethodVisitor mv);
+    }
+
+    final String id;
+    final String method;
+    final String owner;
+    final String name;
+    final String descriptor;
+    final Action action;
+    final Emitter emitter;
+    final LongAdder fired;
+
+    /**
+     * @param id         name of the rule in statistics
+     * @param method     name and descriptor of the method to patch, e.g.
+     *                   {@code initComponents()V}, null for all methods
+     * @param owner      internal name of the class declaring the called method
+     * @param name       name of the called method
+     * @param descriptor descriptor of the called method, null for any
+     * @param action     what to do at the call
+     * @param emitter    writes the code to insert or replace the call with, null for DELETE
+     */
+    public PatchRule(String id, String method, String owner, String name, String descriptor,
+                     Action action, Emitter emitter) {
+        if ((action == Action.DELETE) != (emitter == null))
+            throw new IllegalArgumentException(id + ": Only DELETE rules have no emitter");
+        if (action == Action.DELETE && (descriptor == null || Type.getReturnType(descriptor) != Type.VOID_TYPE))
+            throw new IllegalArgumentException(id + ": DELETE needs the descriptor of a void method");
+
+        this.id = id;
+        this.method = method;
+        this.owner = owner;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.action = action;
+        this.emitter = emitter;
+        this.fired = RuleSet.counter(id);
+    }
+
+    public static PatchRule before(String id, String method, String owner, String name, String descriptor, Emitter emitter) {
+        return new PatchRule(id, method, owner, name, descriptor, Action.BEFORE, emitter);
+    }
+
+    public static PatchRule after(String id, String method, String owner, String name, String descriptor, Emitter emitter) {
+        return new PatchRule(id, method, owner, name, descriptor, Action.AFTER, emitter);
+    }
+
+    public static PatchRule replace(String id, String method, String owner, String name, String descriptor, Emitter emitter) {
+        return new PatchRule(id, method, owner, name, descriptor, Action.REPLACE, emitter);
+    }
+
+    public static PatchRule delete(String id, String method, String owner, String name, String descriptor) {
+        return new PatchRule(id, method, owner, name, descriptor, Action.DELETE, null);
+    }
+
+    boolean matches(String owner, String descriptor) {
+        return this.owner.equals(owner) && (this.descriptor == null || this.descriptor.equals(descriptor));
+    }
+
+    boolean replacesCall() {
+        return action == Action.REPLACE || action == Action.DELETE;
+    }
+
+    @Override
+    public String toString() {
+        return id + " (" + action + ' ' + owner + '.' + name + (descriptor != null ? descriptor : "") +
+                (method != null ? " in " + method : "") + ')';
+    }
+}
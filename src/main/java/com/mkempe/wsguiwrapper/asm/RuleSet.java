@@ -0,0 +1,178 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper.asm;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * PatchRules compiled for lookup by the name of the called method, so each
+ * call instruction costs a single hash probe no matter how many rules there
+ * are. Methods no rule applies to aren't wrapped at all.
+ */
+public class RuleSet {
+    // How often each rule fired, by id, kept over every RuleSet ever compiled
+    private static final Map<String, LongAdder> fired = new ConcurrentHashMap<>();
+
+    // Name and descriptor of the patched method to the rules for it by called method name,
+    // the null key holds the rules for methods not listed
+    private final Map<String, Map<String, PatchRule[]>> byMethod = new HashMap<>();
+
+    public RuleSet(PatchRule... rules) {
+        this(Arrays.asList(rules));
+    }
+
+    /**
+     * @throws IllegalArgumentException if two rules replace the same call
+     */
+    public RuleSet(List<PatchRule> rules) {
+        Set<String> methods = new HashSet<>();
+        methods.add(null);
+        for (PatchRule rule : rules)
+            methods.add(rule.method);
+
+        for (String method : methods) {
+            Map<String, List<PatchRule>> byName = new HashMap<>();
+            for (PatchRule rule : rules) {
+                if (rule.method == null || rule.method.equals(method)) {
+                    List<PatchRule> named = byName.computeIfAbsent(rule.name, n -> new ArrayList<>());
+                    checkConflicts(named, rule);
+                    named.add(rule);
+                }
+            }
+            if (byName.isEmpty())
+                continue;
+
+            Map<String, PatchRule[]> compiled = new HashMap<>();
+            byName.forEach((name, named) -> compiled.put(name, named.toArray(new PatchRule[0])));
+            byMethod.put(method, compiled);
+        }
+    }
+
+    private static void checkConflicts(List<PatchRule> named, PatchRule rule) {
+        if (!rule.replacesCall())
+            return;
+        for (PatchRule other : named) {
+            if (other.replacesCall() && other.owner.equals(rule.owner) && (other.descriptor == null ||
+                    rule.descriptor == null || other.descriptor.equals(rule.descriptor)))
+                throw new IllegalArgumentException(rule + " and " + other + " replace the same call");
+        }
+    }
+
+    /**
+     * @return visitor applying the rules to the method, mv itself if there are none for it
+     */
+    public MethodVisitor apply(int api, MethodVisitor mv, String name, String descriptor) {
+        Map<String, PatchRule[]> rules = byMethod.get(name + descriptor);
+        if (rules == null)
+            rules = byMethod.get(null);
+        return rules == null ? mv : new RuleMethodAdapter(api, mv, rules);
+    }
+
+    static LongAdder counter(String id) {
+        return fired.computeIfAbsent(id, i -> new LongAdder());
+    }
+
+    /**
+     * @return how often each rule fired since startup, by id
+     */
+    public static Map<String, Long> stats() {
+        Map<String, Long> stats = new TreeMap<>();
+        fired.forEach((id, counter) -> stats.put(id, counter.sum()));
+        return stats;
+    }
+
+    private static class RuleMethodAdapter extends MethodVisitor {
+        private final Map<String, PatchRule[]> rules;
+
+        RuleMethodAdapter(int api, MethodVisitor methodVisitor, Map<String, PatchRule[]> rules) {
+            super(api, methodVisitor);
+            this.rules = rules;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            PatchRule[] candidates = rules.get(name);
+            if (candidates == null) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                return;
+            }
+
+            PatchRule replacement = null;
+            for (PatchRule rule : candidates) {
+                if (!rule.matches(owner, descriptor))
+                    continue;
+                if (rule.action == PatchRule.Action.BEFORE)
+                    fire(rule);
+                else if (rule.replacesCall())
+                    replacement = rule;
+            }
+
+            if (replacement == null) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            } else if (replacement.action == PatchRule.Action.REPLACE) {
+                fire(replacement);
+            } else {
+                replacement.fired.increment();
+                delete(opcode, descriptor);
+            }
+
+            for (PatchRule rule : candidates) {
+                if (rule.action == PatchRule.Action.AFTER && rule.matches(owner, descriptor))
+                    fire(rule);
+            }
+        }
+
+        private void fire(PatchRule rule) {
+            rule.fired.increment();
+            rule.emitter.emit(mv);
+        }
+
+        /**
+         * Pops the arguments and the receiver the call would have taken.
+         */
+        private void delete(int opcode, String descriptor) {
+            Type[] arguments = Type.getArgumentTypes(descriptor);
+            for (int i = arguments.length - 1; i >= 0; i--)
+                mv.visitInsn(arguments[i].getSize() == 2 ? POP2 : POP);
+            if (opcode != INVOKESTATIC)
+                mv.visitInsn(POP);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package com.mkempe.wsguiwrapper.asm;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Routes the segment shapes the segment display modules draw through
+ * SegmentRenderer, which copies them out of a shared atlas.
+ */
+public class SegmentDisplayAdapter extends ClassVisitor {
+    private static final int api = ASM9;
+    private static final RuleSet RULES = rules();
+
+    public SegmentDisplayAdapter(ClassVisitor classVisitor) {
+        super(api, classVisitor);
+    }
+
+    /**
+     * Colors are looked up when segments are drawn, runtimeConfig makes no difference here.
+     */
+    public SegmentDisplayAdapter(ClassVisitor classVisitor, boolean runtimeConfig) {
+        this(classVisitor);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        // Segments are drawn by methods that are handed the Graphics, anything else is left alone
+        if (!descriptor.contains("Ljava/awt/Graphics;") && !descriptor.contains("Ljava/awt/Graphics2D;"))
+            return mv;
+        return RULES.apply(api, mv, name, descriptor);
+    }
+
+    /**
+     * Graphics calls drawing a segment or a decimal point go to the SegmentRenderer method of the same name.
+     */
+    private static RuleSet rules() {
+        String[][] draws = {{"fillPolygon", "([I[II)V"}, {"fillPolygon", "(Ljava/awt/Polygon;)V"},
+                {"drawPolygon", "([I[II)V"}, {"drawPolygon", "(Ljava/awt/Polygon;)V"}, {"fillOval", "(IIII)V"}};
+        List<PatchRule> rules = new ArrayList<>();
+        for (String owner : new String[]{"java/awt/Graphics", "java/awt/Graphics2D"}) {
+            for (String[] draw : draws) {
+                rules.add(PatchRule.replace("segment-" + draw[0], null, owner, draw[0], draw[1],
+                        mv -> mv.visitMethodInsn(INVOKESTATIC, Util.SEGMENT_RENDERER, draw[0],
+                                "(Ljava/awt/Graphics;" + draw[1].substring(1), false)));
+            }
+        }
+        return new RuleSet(rules);
+    }
+}
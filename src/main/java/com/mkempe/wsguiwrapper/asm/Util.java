@@ -31,27 +31,129 @@
 
 package com.mkempe.wsguiwrapper.asm;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
 
 import static org.objectweb.asm.Opcodes.*;
 
 public class Util {
-    public static void insertColor(MethodVisitor mv, int r, int g, int b) {
-        mv.visitTypeInsn(NEW, "java/awt/Color");
-        mv.visitInsn(DUP);
-        mv.visitIntInsn(SIPUSH, r);
-        mv.visitIntInsn(SIPUSH, g);
-        mv.visitIntInsn(SIPUSH, b);
-        mv.visitMethodInsn(INVOKESPECIAL, "java/awt/Color", "<init>", "(III)V", false);
+    /**
+     * Internal name of the class patched code calls to read settings at runtime.
+     */
+    public static final String RUNTIME_CONFIG = "com/mkempe/wsguiwrapper/RuntimeConfig";
+    public static final String STARTUP_TIMELINE = "com/mkempe/wsguiwrapper/StartupTimeline";
+    public static final String LIVE_COMPONENTS = "com/mkempe/wsguiwrapper/LiveComponents";
+    public static final String BACKGROUND_LOADER = "com/mkempe/wsguiwrapper/BackgroundLoader";
+    public static final String LED_MATRIX_RENDERER = "com/mkempe/wsguiwrapper/LedMatrixRenderer";
+    public static final String CONNECTION_ENGINE = "com/mkempe/wsguiwrapper/ConnectionEngine";
+    public static final String UPDATE_QUEUE = "com/mkempe/wsguiwrapper/UpdateQueue";
+    public static final String METRICS = "com/mkempe/wsguiwrapper/Metrics";
+    public static final String HEADLESS_WINDOW = "com/mkempe/wsguiwrapper/HeadlessWindow";
+    public static final String HEADLESS_MODEL = "com/mkempe/wsguiwrapper/HeadlessModel";
+    public static final String BUTTON_EVENTS = "com/mkempe/wsguiwrapper/ButtonEvents";
+    public static final String MODULE_PRELOADER = "com/mkempe/wsguiwrapper/ModulePreloader";
+    public static final String SEGMENT_RENDERER = "com/mkempe/wsguiwrapper/SegmentRenderer";
+    public static final String COMMAND_DECODER = "com/mkempe/wsguiwrapper/CommandDecoder";
+    public static final String LAZY_MODULE = "com/mkempe/wsguiwrapper/LazyModule";
+    public static final String LAZY_MODULES = "com/mkempe/wsguiwrapper/LazyModules";
+    /**
+     * Internal name of the class with the bootstrap methods for constants.
+     */
+    public static final String CONSTANTS = "com/mkempe/wsguiwrapper/Constants";
+
+    /**
+     * @param version classfile version of the class being patched
+     * @return whether the class can load constants through invokedynamic (Java 7 and later)
+     */
+    public static boolean supportsConstants(int version) {
+        return (version & 0xFFFF) >= V1_7;
+    }
+
+    public static void insertColor(MethodVisitor mv, boolean constant, int r, int g, int b) {
+        insertInstance(mv, constant, "java/awt/Color", r, g, b);
+    }
+
+    public static void insertAlphaColor(MethodVisitor mv, boolean constant, int r, int g, int b, int a) {
+        insertInstance(mv, constant, "java/awt/Color", r, g, b, a);
     }
 
-    public static void insertAlphaColor(MethodVisitor mv, int r, int g, int b, int a) {
-        mv.visitTypeInsn(NEW, "java/awt/Color");
+    /**
+     * Pushes an instance of type created with three or four int arguments. As a
+     * constant it's created once, when the call site is linked, and the same
+     * instance is pushed every time after, otherwise it's created every time.
+     *
+     * @param constant use invokedynamic, see {@link #supportsConstants}
+     */
+    public static void insertInstance(MethodVisitor mv, boolean constant, String type, int... args) {
+        StringBuilder ints = new StringBuilder();
+        for (int i = 0; i < args.length; i++)
+            ints.append('I');
+
+        if (constant) {
+            Object[] bootstrapArgs = new Object[args.length];
+            for (int i = 0; i < args.length; i++)
+                bootstrapArgs[i] = args[i];
+            mv.visitInvokeDynamicInsn("create", "()L" + type + ';', new Handle(H_INVOKESTATIC, CONSTANTS, "create",
+                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" + ints +
+                            ")Ljava/lang/invoke/CallSite;", false), bootstrapArgs);
+            return;
+        }
+
+        mv.visitTypeInsn(NEW, type);
         mv.visitInsn(DUP);
-        mv.visitIntInsn(SIPUSH, r);
-        mv.visitIntInsn(SIPUSH, g);
-        mv.visitIntInsn(SIPUSH, b);
-        mv.visitIntInsn(SIPUSH, a);
-        mv.visitMethodInsn(INVOKESPECIAL, "java/awt/Color", "<init>", "(IIII)V", false);
+        for (int arg : args) {
+            if (arg >= -1 && arg <= 5)
+                mv.visitInsn(ICONST_0 + arg);
+            else
+                mv.visitIntInsn(SIPUSH, arg);
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, type, "<init>", "(" + ints + ")V", false);
+    }
+
+    /**
+     * Replaces the value of the given type on top of the stack with its boxed
+     * equivalent, references are left as they are.
+     */
+    public static void box(MethodVisitor mv, Type type) {
+        String boxed;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                boxed = "java/lang/Boolean";
+                break;
+            case Type.CHAR:
+                boxed = "java/lang/Character";
+                break;
+            case Type.BYTE:
+                boxed = "java/lang/Byte";
+                break;
+            case Type.SHORT:
+                boxed = "java/lang/Short";
+                break;
+            case Type.INT:
+                boxed = "java/lang/Integer";
+                break;
+            case Type.FLOAT:
+                boxed = "java/lang/Float";
+                break;
+            case Type.LONG:
+                boxed = "java/lang/Long";
+                break;
+            case Type.DOUBLE:
+                boxed = "java/lang/Double";
+                break;
+            default:
+                return;
+        }
+        mv.visitMethodInsn(INVOKESTATIC, boxed, "valueOf", "(" + type.getDescriptor() + ")L" + boxed + ";", false);
+    }
+
+    /**
+     * Inserts a call to a static (Ljava/lang/Object;)V method passing this,
+     * expects to be in an instance method.
+     */
+    public static void insertThisHook(MethodVisitor mv, String owner, String name) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESTATIC, owner, name, "(Ljava/lang/Object;)V", false);
     }
 }
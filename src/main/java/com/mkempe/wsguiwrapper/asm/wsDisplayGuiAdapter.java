@@ -35,152 +35,292 @@ import com.mkempe.wsguiwrapper.Settings;
 import org.objectweb.asm.*;
 
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.objectweb.asm.Opcodes.*;
 
 public class wsDisplayGuiAdapter extends ClassVisitor {
     private static final int api = ASM9;
+    private static final String GUI = "wsGUI/wsDisplayGUI";
+    private static final String INIT = "<init>()V";
+    private static final String INIT_COMPONENTS = "initComponents()V";
+    private static final String MODULES = "modules/";
+    private static final String[] BUTTON_ARRAYS = {"pushButtonArrayOption1", "pushButtonArrayOption2", "pushButtonArrayOnOff"};
+    private static final String[] LABELS = {"jLabel1", "jLabel3"};
+
+    private final boolean runtimeConfig;
+    private final boolean inPlace;
+    private RuleSet rules;
+    private String className;
+    private int version;
+    // Binary names of the module classes of the fields, fields are visited before methods
+    private final Set<String> modules = new LinkedHashSet<>();
 
     public wsDisplayGuiAdapter(ClassVisitor classVisitor) {
-        super(api, classVisitor);
+        this(classVisitor, false);
     }
 
-    @Override
-    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
-
-        if (name.equals("<init>") && descriptor.equals("()V")) {
-            return new initMethodAdapter(api, mv);
-        }
-        if (name.equals("initComponents") && descriptor.equals("()V")) {
-            return new initComponentsMethodAdapter(api, mv);
-        }
-
-        return mv;
+    /**
+     * @param runtimeConfig read settings through RuntimeConfig when the class
+     *                      runs instead of inserting them as constants
+     */
+    public wsDisplayGuiAdapter(ClassVisitor classVisitor, boolean runtimeConfig) {
+        this(classVisitor, runtimeConfig, false);
     }
 
-    protected static class initMethodAdapter extends MethodVisitor {
+    /**
+     * @param inPlace the class is already loaded, IOServer doesn't get a getPort
+     *                method then, and the constructor has already run anyway
+     */
+    public wsDisplayGuiAdapter(ClassVisitor classVisitor, boolean runtimeConfig, boolean inPlace) {
+        super(api, classVisitor);
+        this.runtimeConfig = runtimeConfig;
+        this.inPlace = inPlace;
+    }
 
-        public initMethodAdapter(int api, MethodVisitor methodVisitor) {
-            super(api, methodVisitor);
-        }
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        // Depends on the classfile version, so compiled once it's known
+        boolean constants = Util.supportsConstants(version);
+        rules = runtimeConfig ? runtimeConfigRules(constants) : rules(Settings.getInstance(), constants, !inPlace);
+        this.className = name;
+        this.version = version;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
 
-        @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
-            if (owner.equals("java/lang/StringBuilder") && name.equals("toString")) {
-                // Append port number to string displaying hostname
-                mv.visitLdcInsn(":");
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
-                mv.visitMethodInsn(INVOKESTATIC, "wsGUI/IOServer", "getPort", "()I", false);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
-            }
-            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-        }
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        if (descriptor.startsWith("L" + MODULES) && descriptor.endsWith(";"))
+            modules.add(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+        return super.visitField(access, name, descriptor, signature, value);
     }
 
-    private static class initComponentsMethodAdapter extends MethodVisitor {
-        boolean foundImageIcon = false;
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        MethodVisitor mv = rules.apply(api, super.visitMethod(access, name, descriptor, signature, exceptions), name, descriptor);
 
-        public initComponentsMethodAdapter(int api, MethodVisitor mv) {
-            super(api, mv);
+        Settings settings = Settings.getInstance();
+        if (name.equals("initComponents") && descriptor.equals("()V") &&
+                (runtimeConfig || settings.getBackground() != null || settings.fastStartup())) {
+            return new initComponentsMethodAdapter(api, mv);
+        }
+        // Class constants need a 1.5 classfile
+        if (name.equals("main") && descriptor.equals("([Ljava/lang/String;)V") && (access & ACC_STATIC) != 0 &&
+                (runtimeConfig || settings.fastStartup()) && !modules.isEmpty() && (version & 0xffff) >= V1_5) {
+            return new mainMethodAdapter(api, mv, className, String.join(",", modules));
         }
 
-        @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
-            if (owner.equals("wsGUI/wsDisplayGUI") &&
-                    name.equals("pack") && descriptor.equals("()V")) {
-
-                // TODO change segment display border as well
-                Color bordercolor;
-                if ((bordercolor = Settings.getInstance().getBorderColor()) != null) {
-                    // Change button border color
-                    mv.visitFieldInsn(GETFIELD, owner, "pushButtonArrayOption1", "Lmodules/PushButtonArrayModule;");
-                    Util.insertAlphaColor(mv, bordercolor.getRed(), bordercolor.getGreen(), bordercolor.getBlue(), bordercolor.getAlpha());
-                    mv.visitMethodInsn(INVOKEVIRTUAL, "modules/PushButtonArrayModule", "setBackground", "(Ljava/awt/Color;)V", false);
-                    mv.visitVarInsn(ALOAD, 0);
-
-                    mv.visitFieldInsn(GETFIELD, owner, "pushButtonArrayOption2", "Lmodules/PushButtonArrayModule;");
-                    Util.insertAlphaColor(mv, bordercolor.getRed(), bordercolor.getGreen(), bordercolor.getBlue(), bordercolor.getAlpha());
-                    mv.visitMethodInsn(INVOKEVIRTUAL, "modules/PushButtonArrayModule", "setBackground", "(Ljava/awt/Color;)V", false);
-                    mv.visitVarInsn(ALOAD, 0);
+        return mv;
+    }
 
-                    mv.visitFieldInsn(GETFIELD, owner, "pushButtonArrayOnOff", "Lmodules/PushButtonArrayModule;");
-                    Util.insertAlphaColor(mv, bordercolor.getRed(), bordercolor.getGreen(), bordercolor.getBlue(), bordercolor.getAlpha());
+    /**
+     * Patches with the settings inserted as constants.
+     *
+     * @param constants create colors and constraints once per call site, see Util.supportsConstants
+     * @param port      append the port to the hostname, which needs IOServer.getPort
+     */
+    private static RuleSet rules(Settings settings, boolean constants, boolean port) {
+        List<PatchRule> rules = new ArrayList<>();
+        if (port)
+            rules.add(portRule());
+
+        rules.add(registerOriginalsRule());
+
+        Color borderColor = settings.getBorderColor();
+        if (borderColor != null) {
+            // Segment display outlines get the border color from SegmentRenderer
+            rules.add(PatchRule.before("border-color", INIT_COMPONENTS, GUI, "pack", "()V", mv -> {
+                for (String button : BUTTON_ARRAYS) {
+                    mv.visitFieldInsn(GETFIELD, GUI, button, "Lmodules/PushButtonArrayModule;");
+                    Util.insertAlphaColor(mv, constants, borderColor.getRed(), borderColor.getGreen(), borderColor.getBlue(), borderColor.getAlpha());
                     mv.visitMethodInsn(INVOKEVIRTUAL, "modules/PushButtonArrayModule", "setBackground", "(Ljava/awt/Color;)V", false);
                     mv.visitVarInsn(ALOAD, 0);
                 }
+            }));
+        }
 
-                Color textColor;
-                if ((textColor = Settings.getInstance().getTextColor()) != null) {
-                    // Change text color
-                    mv.visitFieldInsn(GETFIELD, owner, "jLabel1", "Ljavax/swing/JLabel;");
-                    Util.insertAlphaColor(mv, textColor.getRed(), textColor.getGreen(), textColor.getBlue(), textColor.getAlpha());
-                    mv.visitMethodInsn(INVOKEVIRTUAL, "javax/swing/JLabel", "setForeground", "(Ljava/awt/Color;)V", false);
-                    mv.visitVarInsn(ALOAD, 0);
-
-                    mv.visitFieldInsn(GETFIELD, owner, "jLabel3", "Ljavax/swing/JLabel;");
-                    Util.insertAlphaColor(mv, textColor.getRed(), textColor.getGreen(), textColor.getBlue(), textColor.getAlpha());
+        Color textColor = settings.getTextColor();
+        if (textColor != null) {
+            rules.add(PatchRule.before("text-color", INIT_COMPONENTS, GUI, "pack", "()V", mv -> {
+                for (String label : LABELS) {
+                    mv.visitFieldInsn(GETFIELD, GUI, label, "Ljavax/swing/JLabel;");
+                    Util.insertAlphaColor(mv, constants, textColor.getRed(), textColor.getGreen(), textColor.getBlue(), textColor.getAlpha());
                     mv.visitMethodInsn(INVOKEVIRTUAL, "javax/swing/JLabel", "setForeground", "(Ljava/awt/Color;)V", false);
                     mv.visitVarInsn(ALOAD, 0);
                 }
+            }));
+        }
 
-                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-                return;
-            }
+        rules.add(registerWindowRule());
+
+        if (settings.addText()) {
+            String text = settings.getText();
+            rules.add(PatchRule.after("modified-label", INIT_COMPONENTS, "java/awt/Container", "setLayout",
+                    "(Ljava/awt/LayoutManager;)V", mv -> {
+                        mv.visitTypeInsn(NEW, "javax/swing/JLabel");
+                        mv.visitInsn(DUP);
+                        mv.visitInsn(DUP);
+                        mv.visitMethodInsn(INVOKESPECIAL, "javax/swing/JLabel", "<init>", "()V", false);
+                        mv.visitInsn(DUP);
+                        mv.visitMethodInsn(INVOKESTATIC, Util.LIVE_COMPONENTS, "registerModifiedLabel", "(Ljavax/swing/JLabel;)V", false);
+
+                        addToContentPane(mv, constants);
+
+                        mv.visitInsn(DUP);
+                        mv.visitLdcInsn(text);
+                        mv.visitMethodInsn(INVOKEVIRTUAL, "javax/swing/JLabel", "setText", "(Ljava/lang/String;)V", false);
+
+                        if (textColor != null) {
+                            Util.insertAlphaColor(mv, constants, textColor.getRed(), textColor.getGreen(), textColor.getBlue(), textColor.getAlpha());
+                            mv.visitMethodInsn(INVOKEVIRTUAL, "javax/swing/JLabel", "setForeground", "(Ljava/awt/Color;)V", false);
+                        } else {
+                            // Don't leave the label on the stack, frames after this point don't expect it
+                            mv.visitInsn(POP);
+                        }
+                    }));
+        }
 
-            if (Settings.getInstance().addText() && owner.equals("java/awt/Container") &&
-                    name.equals("setLayout") && descriptor.equals("(Ljava/awt/LayoutManager;)V")) {
+        String background = settings.getBackground();
+        if (background != null) {
+            // Load the configured background in the background, scaled to the original's size
+            rules.add(PatchRule.replace("background", INIT_COMPONENTS, "javax/swing/ImageIcon", "<init>",
+                    "(Ljava/net/URL;)V", mv -> {
+                        mv.visitLdcInsn(background);
+                        mv.visitMethodInsn(INVOKESTATIC, Util.BACKGROUND_LOADER, "load", "(Ljava/net/URL;Ljava/lang/String;)Ljavax/swing/ImageIcon;", false);
+                    }));
+        } else if (settings.fastStartup()) {
+            // Load the original background in the background, it registers the icon for reloads as well
+            rules.add(PatchRule.replace("background-original", INIT_COMPONENTS, "javax/swing/ImageIcon", "<init>",
+                    "(Ljava/net/URL;)V", mv -> mv.visitMethodInsn(INVOKESTATIC, Util.BACKGROUND_LOADER, "loadOriginal",
+                            "(Ljava/net/URL;)Ljavax/swing/ImageIcon;", false)));
+        } else {
+            // Lets a background be set when the config is reloaded
+            rules.add(PatchRule.after("register-background", INIT_COMPONENTS, "javax/swing/ImageIcon", "<init>",
+                    "(Ljava/net/URL;)V", mv -> {
+                        mv.visitInsn(DUP);
+                        mv.visitMethodInsn(INVOKESTATIC, Util.LIVE_COMPONENTS, "registerBackground", "(Ljavax/swing/ImageIcon;)V", false);
+                    }));
+        }
 
-                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        return new RuleSet(rules);
+    }
 
-                mv.visitTypeInsn(NEW, "javax/swing/JLabel");
-                mv.visitInsn(DUP);
-                mv.visitInsn(DUP);
-                mv.visitMethodInsn(INVOKESPECIAL, "javax/swing/JLabel", "<init>", "()V", false);
+    /**
+     * Same patches as rules, but settings are looked up through RuntimeConfig.
+     */
+    private static RuleSet runtimeConfigRules(boolean constants) {
+        return new RuleSet(
+                portRule(),
+                registerOriginalsRule(),
+                PatchRule.before("border-color", INIT_COMPONENTS, GUI, "pack", "()V", mv -> {
+                    for (String button : BUTTON_ARRAYS) {
+                        mv.visitFieldInsn(GETFIELD, GUI, button, "Lmodules/PushButtonArrayModule;");
+                        mv.visitMethodInsn(INVOKESTATIC, Util.RUNTIME_CONFIG, "applyBorderColor", "(Ljava/awt/Component;)V", false);
+                        mv.visitVarInsn(ALOAD, 0);
+                    }
+                }),
+                PatchRule.before("text-color", INIT_COMPONENTS, GUI, "pack", "()V", mv -> {
+                    for (String label : LABELS) {
+                        mv.visitFieldInsn(GETFIELD, GUI, label, "Ljavax/swing/JLabel;");
+                        mv.visitMethodInsn(INVOKESTATIC, Util.RUNTIME_CONFIG, "applyTextColor", "(Ljava/awt/Component;)V", false);
+                        mv.visitVarInsn(ALOAD, 0);
+                    }
+                }),
+                registerWindowRule(),
+                PatchRule.after("modified-label", INIT_COMPONENTS, "java/awt/Container", "setLayout",
+                        "(Ljava/awt/LayoutManager;)V", mv -> {
+                            mv.visitMethodInsn(INVOKESTATIC, Util.RUNTIME_CONFIG, "modifiedLabel", "()Ljavax/swing/JLabel;", false);
+                            addToContentPane(mv, constants);
+                        }),
+                // Load the configured background in the background, scaled to the original's size
+                PatchRule.replace("background", INIT_COMPONENTS, "javax/swing/ImageIcon", "<init>",
+                        "(Ljava/net/URL;)V", mv -> mv.visitMethodInsn(INVOKESTATIC, Util.BACKGROUND_LOADER, "load",
+                                "(Ljava/net/URL;)Ljavax/swing/ImageIcon;", false)));
+    }
 
+    /**
+     * Appends the port number to the string displaying the hostname.
+     */
+    private static PatchRule portRule() {
+        return PatchRule.before("port-in-hostname", INIT, "java/lang/StringBuilder", "toString", null, mv -> {
+            mv.visitLdcInsn(":");
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+            mv.visitMethodInsn(INVOKESTATIC, "wsGUI/IOServer", "getPort", "()I", false);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(I)Ljava/lang/StringBuilder;", false);
+        });
+    }
 
-                mv.visitVarInsn(ALOAD, 0);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "wsGUI/wsDisplayGUI", "getContentPane", "()Ljava/awt/Container;", false);
-                mv.visitInsn(SWAP);
-                mv.visitTypeInsn(NEW, "org/netbeans/lib/awtextra/AbsoluteConstraints");
-                mv.visitInsn(DUP);
-                mv.visitIntInsn(SIPUSH, 150);
-                mv.visitIntInsn(SIPUSH, 500);
-                mv.visitInsn(ICONST_M1);
-                mv.visitInsn(ICONST_M1);
-                mv.visitMethodInsn(INVOKESPECIAL, "org/netbeans/lib/awtextra/AbsoluteConstraints", "<init>", "(IIII)V", false);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/awt/Container", "add", "(Ljava/awt/Component;Ljava/lang/Object;)V", false);
+    /**
+     * Hands the window to LiveComponents before the colors are set, has to come
+     * before the rules setting them.
+     */
+    private static PatchRule registerOriginalsRule() {
+        return PatchRule.before("register-originals", INIT_COMPONENTS, GUI, "pack", "()V", mv -> {
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESTATIC, Util.LIVE_COMPONENTS, "registerOriginals", "(Ljava/lang/Object;)V", false);
+        });
+    }
 
-                mv.visitInsn(DUP);
-                mv.visitLdcInsn(Settings.getInstance().getText());
-                mv.visitMethodInsn(INVOKEVIRTUAL, "javax/swing/JLabel", "setText", "(Ljava/lang/String;)V", false);
+    private static PatchRule registerWindowRule() {
+        return PatchRule.after("register-window", INIT_COMPONENTS, GUI, "pack", "()V", mv -> {
+            Util.insertThisHook(mv, Util.STARTUP_TIMELINE, "firstPaint");
+            Util.insertThisHook(mv, Util.LIVE_COMPONENTS, "registerWindow");
+        });
+    }
 
-                Color textColor;
-                if ((textColor = Settings.getInstance().getTextColor()) != null) {
-                    Util.insertAlphaColor(mv, textColor.getRed(), textColor.getGreen(), textColor.getBlue(), textColor.getAlpha());
-                    mv.visitMethodInsn(INVOKEVIRTUAL, "javax/swing/JLabel", "setForeground", "(Ljava/awt/Color;)V", false);
-                }
+    /**
+     * Adds the label on top of the stack to the content pane below the display.
+     */
+    private static void addToContentPane(MethodVisitor mv, boolean constants) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, GUI, "getContentPane", "()Ljava/awt/Container;", false);
+        mv.visitInsn(SWAP);
+        // AbsoluteLayout only reads the constraints, so one instance can be shared
+        Util.insertInstance(mv, constants, "org/netbeans/lib/awtextra/AbsoluteConstraints", 150, 500, -1, -1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/awt/Container", "add", "(Ljava/awt/Component;Ljava/lang/Object;)V", false);
+    }
 
-                return;
-            }
+    /**
+     * Starts loading the module classes before main does anything else.
+     */
+    private static class mainMethodAdapter extends MethodVisitor {
+        private final String className;
+        private final String modules;
 
-            if (!foundImageIcon) {
-                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
-            } else if (opcode == INVOKESPECIAL && owner.equals("javax/swing/ImageIcon") &&
-                    name.equals("<init>") && descriptor.equals("(Ljava/net/URL;)V")) {
-                foundImageIcon = false;
-                mv.visitInsn(DUP);
-                mv.visitLdcInsn(Settings.getInstance().getBackground());
-                mv.visitMethodInsn(opcode, owner, name, "(Ljava/lang/String;)V", isInterface);
-            }
+        public mainMethodAdapter(int api, MethodVisitor mv, String className, String modules) {
+            super(api, mv);
+            this.className = className;
+            this.modules = modules;
         }
 
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            mv.visitLdcInsn(modules);
+            mv.visitLdcInsn(Type.getObjectType(className));
+            mv.visitMethodInsn(INVOKESTATIC, Util.MODULE_PRELOADER, "preload", "(Ljava/lang/String;Ljava/lang/Class;)V", false);
+        }
+    }
+
+    /**
+     * Drops the NEW and the DUP of the ImageIcon the background rules replace
+     * with BackgroundLoader. Instructions loading the URL argument are kept.
+     */
+    private static class initComponentsMethodAdapter extends MethodVisitor {
+        boolean skipDup = false;
+
+        public initComponentsMethodAdapter(int api, MethodVisitor mv) {
+            super(api, mv);
+        }
 
         @Override
         public void visitTypeInsn(int opcode, String type) {
-            if (Settings.getInstance().getBackground() != null && opcode == NEW &&
-                    type.equals("javax/swing/ImageIcon")) {
-                foundImageIcon = true;
+            if (opcode == NEW && type.equals("javax/swing/ImageIcon")) {
+                skipDup = true;
+                return;
             }
 
             super.visitTypeInsn(opcode, type);
@@ -188,20 +328,13 @@ public class wsDisplayGuiAdapter extends ClassVisitor {
 
         @Override
         public void visitInsn(int opcode) {
-            if (!foundImageIcon)
-                super.visitInsn(opcode);
-        }
-
-        @Override
-        public void visitVarInsn(int opcode, int varIndex) {
-            if (!foundImageIcon)
-                super.visitVarInsn(opcode, varIndex);
-        }
+            if (skipDup) {
+                skipDup = false;
+                if (opcode == DUP)
+                    return;
+            }
 
-        @Override
-        public void visitLdcInsn(Object value) {
-            if (!foundImageIcon)
-                super.visitLdcInsn(value);
+            super.visitInsn(opcode);
         }
     }
 }
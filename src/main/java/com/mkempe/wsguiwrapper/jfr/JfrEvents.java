@@ -0,0 +1,85 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper.jfr;
+
+/**
+ * Creates and commits the wrapper's Flight Recorder events. Events are passed
+ * around as Object so callers can be loaded on JVMs without jdk.jfr, as long
+ * as they don't call into this class.
+ */
+public final class JfrEvents {
+    private JfrEvents() {
+    }
+
+    public static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, JfrEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    public static Object beginPhase() {
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endPhase(Object phaseEvent, String phase, String detail) {
+        PhaseEvent event = (PhaseEvent) phaseEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.detail = detail;
+            event.commit();
+        }
+    }
+
+    public static Object beginTransform() {
+        TransformEvent event = new TransformEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endTransform(Object transformEvent, String className, int bytesIn, int bytesOut, boolean cached) {
+        TransformEvent event = (TransformEvent) transformEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            event.className = className;
+            event.bytesIn = bytesIn;
+            event.bytesOut = bytesOut;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Checks that what the wrapper runs for every message allocates nothing: the
+ * code injected into IOServer, the setter bridges it gets and the line
+ * decoding of CommandDecoder. Also checks that the colors and constraints
+ * injected into wsDisplayGUI and LedMatrix are constants rather than created
+ * where they're used. Allocations are found in the bytecode, as object and
+ * array creation, boxing and invokedynamic call sites.
+ */
+class AllocationTest {
+    private static final List<String> WRAPPERS = Arrays.asList("java/lang/Boolean", "java/lang/Byte",
+            "java/lang/Character", "java/lang/Short", "java/lang/Integer", "java/lang/Long", "java/lang/Float",
+            "java/lang/Double");
+    // Types the injected code loads as constants, see Util.insertInstance
+    private static final List<String> CONSTANT_TYPES = Arrays.asList("java/awt/Color",
+            "org/netbeans/lib/awtextra/AbsoluteConstraints");
+
+    @BeforeAll
+    static void configure() throws IOException {
+        StubClasses.configure();
+    }
+
+    @Test
+    void injectedIOServerCodeAllocatesNothing() throws IOException {
+        byte[] original = StubClasses.read("wsGUI/IOServer");
+        ClassNode before = node(original);
+        ClassNode after = node(Patcher.transform(original, AdapterRegistry.get("wsGUI/IOServer"), false));
+
+        for (MethodNode method : after.methods) {
+            List<String> allocations = allocations(method);
+            MethodNode source = method(before, method.name, method.desc);
+            // Whatever IOServer allocated itself may stay
+            if (source != null) {
+                for (String allocation : allocations(source))
+                    allocations.remove(allocation);
+            }
+            assertEquals(Collections.emptyList(), allocations, method.name + method.desc);
+        }
+    }
+
+    @Test
+    void moduleSettersAreBridged() throws IOException {
+        ClassNode patched = node(Patcher.transform(StubClasses.read("wsGUI/IOServer"), AdapterRegistry.get("wsGUI/IOServer"), false));
+
+        assertTrue(patched.methods.stream().anyMatch(method -> method.name.startsWith("wsGUIWrapper$update")),
+                "setDot isn't passed to UpdateQueue");
+        assertTrue(patched.methods.stream().anyMatch(method -> method.name.startsWith("wsGUIWrapper$read")),
+                "isDot doesn't sync with UpdateQueue");
+    }
+
+    @Test
+    void injectedColorsAndConstraintsAreConstants() throws IOException {
+        assertConstantsInjected("wsGUI/wsDisplayGUI", "initComponents", "()V", "initComponents");
+        // With fast startup the constructor body is moved to the method building the matrix
+        assertConstantsInjected("modules/LedMatrix", "<init>", "()V", "wsGUIWrapper$build");
+    }
+
+    @Test
+    void decodingLinesAllocatesNothing() throws IOException {
+        ClassNode reader = node(read(CommandDecoder.class, "CommandDecoder$LineReader"));
+        assertNoAllocations(method(reader, "readLine", "()Ljava/lang/String;"));
+        assertNoAllocations(method(reader, "cached", "(I[BII)Ljava/lang/String;"));
+        assertNoAllocations(method(reader, "index", "([BII)I"));
+    }
+
+    @Test
+    void queueingUpdatesAllocatesNothing() throws IOException {
+        ClassNode queue = node(read(UpdateQueue.class, "UpdateQueue"));
+        assertNoAllocations(method(queue, "post", "(Ljava/lang/Object;Ljava/lang/String;IJJJJ" +
+                "Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V"));
+        assertNoAllocations(method(queue, "claim", "()J"));
+
+        ClassNode ring = node(read(RingBuffer.class, "RingBuffer"));
+        assertNoAllocations(method(ring, "claim", "()J"));
+        assertNoAllocations(method(ring, "publish", "(J)V"));
+    }
+
+    /**
+     * Checks the patched method creates no more colors or constraints than the
+     * original did, and that it loads the ones injected as constants.
+     *
+     * @param patchedName name of the method in the patched class
+     */
+    private static void assertConstantsInjected(String className, String name, String descriptor, String patchedName) throws IOException {
+        byte[] original = StubClasses.read(className);
+        MethodNode before = method(node(original), name, descriptor);
+        MethodNode after = method(node(Patcher.transform(original, AdapterRegistry.get(className), false)), patchedName, descriptor);
+        assertNotNull(before);
+        assertNotNull(after);
+
+        List<String> created = allocations(after);
+        for (String allocation : allocations(before))
+            created.remove(allocation);
+        created.removeIf(allocation -> !allocation.startsWith("NEW ") || !CONSTANT_TYPES.contains(allocation.substring(4)));
+        assertEquals(Collections.emptyList(), created, className + '.' + name + descriptor);
+
+        boolean constants = false;
+        for (AbstractInsnNode insn : after.instructions) {
+            if (insn.getOpcode() == INVOKEDYNAMIC && CONSTANT_TYPES.contains(
+                    Type.getReturnType(((InvokeDynamicInsnNode) insn).desc).getInternalName()))
+                constants = true;
+        }
+        assertTrue(constants, className + '.' + name + descriptor + " loads no injected constants");
+    }
+
+    private static void assertNoAllocations(MethodNode method) {
+        assertNotNull(method);
+        assertEquals(Collections.emptyList(), allocations(method), method.name + method.desc);
+    }
+
+    private static List<String> allocations(MethodNode method) {
+        List<String> allocations = new ArrayList<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            switch (insn.getOpcode()) {
+                case NEW:
+                case ANEWARRAY:
+                    allocations.add((insn.getOpcode() == NEW ? "NEW " : "ANEWARRAY ") + ((TypeInsnNode) insn).desc);
+                    break;
+                case NEWARRAY:
+                    allocations.add("NEWARRAY " + ((IntInsnNode) insn).operand);
+                    break;
+                case MULTIANEWARRAY:
+                    allocations.add("MULTIANEWARRAY " + ((MultiANewArrayInsnNode) insn).desc);
+                    break;
+                case INVOKEDYNAMIC:
+                    allocations.add("INVOKEDYNAMIC " + ((InvokeDynamicInsnNode) insn).name);
+                    break;
+                case INVOKESTATIC:
+                    MethodInsnNode call = (MethodInsnNode) insn;
+                    if (call.name.equals("valueOf") && WRAPPERS.contains(call.owner))
+                        allocations.add("box " + call.owner);
+                    break;
+                default:
+            }
+        }
+        return allocations;
+    }
+
+    private static MethodNode method(ClassNode node, String name, String descriptor) {
+        for (MethodNode method : node.methods) {
+            if (method.name.equals(name) && method.desc.equals(descriptor))
+                return method;
+        }
+        return null;
+    }
+
+    private static ClassNode node(byte[] bytes) {
+        ClassNode node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+        return node;
+    }
+
+    private static byte[] read(Class<?> neighbour, String simpleName) throws IOException {
+        try (InputStream in = neighbour.getResourceAsStream(simpleName + ".class")) {
+            assertNotNull(in, simpleName);
+            return Patcher.readAll(in);
+        }
+    }
+}
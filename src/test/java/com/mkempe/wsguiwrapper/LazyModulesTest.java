@@ -0,0 +1,125 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Creates patched LED matrices with fast startup. The first one is built by
+ * its constructor, the ones after it are placeholders of the same size until
+ * they're painted or used.
+ */
+class LazyModulesTest {
+    @BeforeAll
+    static void configure() throws IOException {
+        StubClasses.configure();
+    }
+
+    @Test
+    void placeholderIsBuiltWhenUsed() throws Exception {
+        Class<?> matrixClass = matrixClass();
+        JComponent first = (JComponent) matrixClass.getConstructor().newInstance();
+        assertEquals(LazyModule.BUILT, state(first));
+
+        JComponent matrix = (JComponent) matrixClass.getConstructor().newInstance();
+        assertEquals(LazyModule.DEFERRED, state(matrix));
+        assertEquals(first.getPreferredSize(), matrix.getPreferredSize());
+        assertEquals(LazyModule.DEFERRED, state(matrix));
+
+        // Off the event dispatch thread, the way IOServer reads a module
+        assertEquals(false, matrixClass.getMethod("isDot", int.class).invoke(matrix, 0));
+        assertEquals(LazyModule.BUILT, state(matrix));
+    }
+
+    @Test
+    void propertiesSetOnPlaceholderAreKept() throws Exception {
+        Class<?> matrixClass = matrixClass();
+        matrixClass.getConstructor().newInstance();
+        JComponent matrix = (JComponent) matrixClass.getConstructor().newInstance();
+        matrix.setPreferredSize(new Dimension(10, 10));
+        matrix.setBackground(Color.BLUE);
+
+        matrixClass.getMethod("isDot", int.class).invoke(matrix, 0);
+        assertEquals(LazyModule.BUILT, state(matrix));
+        assertEquals(new Dimension(10, 10), matrix.getPreferredSize());
+        assertEquals(Color.BLUE, matrix.getBackground());
+    }
+
+    @Test
+    void placeholderIsBuiltAfterFirstPaint() throws Exception {
+        Class<?> matrixClass = matrixClass();
+        matrixClass.getConstructor().newInstance();
+        JComponent matrix = (JComponent) matrixClass.getConstructor().newInstance();
+        matrix.setSize(matrix.getPreferredSize());
+
+        // The build is queued behind the paint, on the event dispatch thread
+        int[] painted = new int[1];
+        SwingUtilities.invokeAndWait(() -> {
+            Graphics g = new BufferedImage(matrix.getWidth(), matrix.getHeight(), BufferedImage.TYPE_INT_RGB).getGraphics();
+            try {
+                matrix.paint(g);
+                painted[0] = state(matrix);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                g.dispose();
+            }
+        });
+        assertEquals(LazyModule.DEFERRED, painted[0]);
+
+        SwingUtilities.invokeAndWait(() -> {
+        });
+        assertEquals(LazyModule.BUILT, state(matrix));
+    }
+
+    /**
+     * @return the patched LedMatrix, loaded with its own copy of the wrapper classes, so no size is remembered yet
+     */
+    private static Class<?> matrixClass() throws Exception {
+        String className = "modules/LedMatrix";
+        byte[] patched = Patcher.transform(StubClasses.read(className), AdapterRegistry.get(className), false);
+        return Class.forName("modules.LedMatrix", true, new VerifyTest.PatchedLoader(StubClasses.loader(), className, patched));
+    }
+
+    private static int state(Object module) throws ReflectiveOperationException {
+        return (int) module.getClass().getMethod("wsGUIWrapper$state").invoke(module);
+    }
+}
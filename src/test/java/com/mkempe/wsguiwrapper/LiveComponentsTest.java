@@ -0,0 +1,77 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.*;
+import java.awt.*;
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reloads a config without the colors over components patched with them,
+ * which should get wsDisplay's own colors back.
+ */
+class LiveComponentsTest {
+    private static final Color STOCK_DOT_COLOR = new Color(255, 0, 0);
+
+    @Test
+    void removedMatrixColorRestoresStockColor() throws Exception {
+        StubClasses.configure();
+        String className = "modules/LedMatrix";
+        byte[] patched = Patcher.transform(StubClasses.read(className), AdapterRegistry.get(className), false);
+        // The patched class calls the wrapper classes of this loader, not the ones running the test
+        ClassLoader loader = new VerifyTest.PatchedLoader(StubClasses.loader(), className, patched);
+        Object matrix = Class.forName("modules.LedMatrix", true, loader).getConstructor().newInstance();
+        assertEquals(new Color(0xff, 0x7e, 0x00), dotColor(matrix));
+
+        try {
+            StubClasses.configureStock();
+            loader.loadClass(Settings.class.getName()).getMethod("reload").invoke(null);
+            loader.loadClass(LiveComponents.class.getName()).getMethod("apply").invoke(null);
+            SwingUtilities.invokeAndWait(() -> {
+            });
+            assertEquals(STOCK_DOT_COLOR, dotColor(matrix));
+        } finally {
+            StubClasses.configure();
+        }
+    }
+
+    private static Color dotColor(Object matrix) throws ReflectiveOperationException {
+        Field field = matrix.getClass().getDeclaredField("onDotColor");
+        field.setAccessible(true);
+        return (Color) field.get(matrix);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The synthetic wsDisplay classes from the jmhStubs source set, whose jar is
+ * passed in by Gradle, and a config for patching them.
+ */
+final class StubClasses {
+    private static Path config;
+    private static Path image;
+
+    private StubClasses() {
+    }
+
+    static Path jar() {
+        String stubJar = System.getProperty("wsguiwrapper.stubJar");
+        if (stubJar == null)
+            throw new IllegalStateException("wsguiwrapper.stubJar isn't set, run through the Gradle test task");
+        return Paths.get(stubJar);
+    }
+
+    /**
+     * @return every class in the stub jar by internal name
+     */
+    static Map<String, byte[]> readAll() throws IOException {
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        try (ZipFile jar = new ZipFile(jar().toFile())) {
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class"))
+                    continue;
+                try (InputStream in = jar.getInputStream(entry)) {
+                    classes.put(entry.getName().substring(0, entry.getName().length() - ".class".length()), Patcher.readAll(in));
+                }
+            }
+        }
+        return classes;
+    }
+
+    static byte[] read(String className) throws IOException {
+        byte[] bytes = readAll().get(className);
+        if (bytes == null)
+            throw new IOException("Class not found in stub jar: " + className);
+        return bytes;
+    }
+
+    /**
+     * @return a loader seeing the stub classes instead of a real wsDisplay.jar, and the wrapper
+     */
+    static ClassLoader loader() throws IOException {
+        List<URL> urls = new ArrayList<>();
+        urls.add(jar().toUri().toURL());
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!entry.isEmpty() && !entry.endsWith("wsDisplay.jar"))
+                urls.add(Paths.get(entry).toUri().toURL());
+        }
+        return new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    /**
+     * Writes a config with every option that affects patching set, and points
+     * Settings at it so nothing is written to the working directory. Has to
+     * run before anything reads the settings.
+     */
+    static void configure() throws IOException {
+        configure(false, true);
+    }
+
+    /**
+     * Same as {@link #configure()}, with a choice of the options deciding how
+     * the background is patched: replaced by the configured image, the original
+     * loaded in the background, or the original registered for reloads.
+     */
+    static synchronized void configure(boolean background, boolean fastStartup) throws IOException {
+        init();
+        String toml = "[ui]\n" +
+                "text_color.r = 0xcc\ntext_color.g = 0xcc\ntext_color.b = 0xcc\ntext_color.a = 0xff\n" +
+                "matrix_color.r = 0xff\nmatrix_color.g = 0x7e\nmatrix_color.b = 0x00\n" +
+                "button_border_color.r = 0xcc\nbutton_border_color.g = 0xcc\nbutton_border_color.b = 0xcc\n" +
+                "add_modified_text = true\n" +
+                (background ? "background = '" + image + "'\n" : "") +
+                "fast_startup = " + fastStartup + "\n" +
+                "\n[cache]\n" +
+                "enabled = false\n";
+        write(toml);
+    }
+
+    /**
+     * Writes a config without any of the options, so wsDisplay keeps its own colors.
+     */
+    static synchronized void configureStock() throws IOException {
+        init();
+        write("[cache]\nenabled = false\n");
+    }
+
+    private static void write(String toml) throws IOException {
+        Files.write(config, toml.getBytes(StandardCharsets.UTF_8));
+        if (!Settings.reload())
+            throw new IOException("Couldn't read " + config);
+    }
+
+    private static void init() throws IOException {
+        if (config == null) {
+            Path dir = Files.createTempDirectory("wsguiwrapper-test");
+            config = dir.resolve("config.toml");
+            image = dir.resolve("background.png");
+            ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+            System.setProperty("wsguiwrapper.config", config.toString());
+        }
+    }
+}
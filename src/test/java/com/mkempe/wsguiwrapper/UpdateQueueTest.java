@@ -0,0 +1,83 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Posts writes from a thread other than the EDT, like IOServer does.
+ */
+class UpdateQueueTest {
+    @BeforeAll
+    static void configure() throws IOException {
+        StubClasses.configure();
+    }
+
+    @Test
+    void syncAppliesWritesToTheModuleRead() throws Exception {
+        JLabel label = new JLabel("before");
+        String text = CompletableFuture.supplyAsync(() -> {
+            UpdateQueue.post(label, "setText(Ljava/lang/String;)V", UpdateQueue.SLOTS, 0, 0, 0, 0, "after", null, null, null);
+            UpdateQueue.sync(label);
+            return label.getText();
+        }).get();
+        assertEquals("after", text);
+    }
+
+    @Test
+    void syncWithoutWritesToTheModuleReturns() throws Exception {
+        JLabel written = new JLabel("before");
+        JLabel read = new JLabel();
+        // The EDT is held up until the end, waiting for the write to be applied wouldn't return
+        Object edt = new Object();
+        synchronized (edt) {
+            SwingUtilities.invokeLater(() -> {
+                synchronized (edt) {
+                    written.setName("released");
+                }
+            });
+            String text = CompletableFuture.supplyAsync(() -> {
+                UpdateQueue.post(written, "setText(Ljava/lang/String;)V", UpdateQueue.SLOTS, 0, 0, 0, 0, "after", null, null, null);
+                UpdateQueue.sync(read);
+                return written.getText();
+            }).get();
+            assertEquals("before", text);
+        }
+    }
+}
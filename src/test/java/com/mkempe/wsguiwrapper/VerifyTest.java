@@ -0,0 +1,236 @@
+/*
+ * SPDX-License-Identifier: BSD-3-Clause
+ *
+ * Copyright (c) 2022 Meindert Kempe
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *     1. Redistributions of source code must retain the above copyright
+ *        notice, this list of conditions and the following disclaimer.
+ *     2. Redistributions in binary form must reproduce the above copyright
+ *        notice, this list of conditions and the following disclaimer in the
+ *        documentation and/or other materials provided with the distribution.
+ *     3. Neither the name of the copyright holder nor the names of its contributors
+ *        may be used to endorse or promote products derived from this software
+ *        without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.mkempe.wsguiwrapper;
+
+import com.mkempe.wsguiwrapper.asm.AdapterRegistry;
+import com.mkempe.wsguiwrapper.asm.HeadlessWindowAdapter;
+import com.mkempe.wsguiwrapper.asm.RuleSet;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Runs ASM's CheckClassAdapter over every stub class an adapter patches, both
+ * with the settings as constants and read at runtime, and with each way the
+ * background can be patched. The classes are transformed here, never taken
+ * from the transform cache. Each one is also loaded and linked, so the JVM
+ * verifies the stack map frames the adapters keep.
+ */
+class VerifyTest {
+    @BeforeAll
+    static void configure() throws IOException {
+        StubClasses.configure();
+    }
+
+    @TestFactory
+    List<DynamicTest> patchedClassesVerify() throws IOException {
+        Map<String, byte[]> classes = StubClasses.readAll();
+        ClassLoader loader = StubClasses.loader();
+
+        List<DynamicTest> tests = new ArrayList<>();
+        for (String target : AdapterRegistry.targets())
+            tests.add(dynamicTest(target + " is a stub", () -> assertTrue(classes.containsKey(target), target + " has no stand-in")));
+
+        classes.forEach((className, original) -> {
+            AdapterRegistry.Factory adapter = AdapterRegistry.get(className);
+            if (adapter == null)
+                return;
+            for (Background background : Background.values()) {
+                for (boolean runtimeConfig : new boolean[]{false, true}) {
+                    tests.add(dynamicTest(className + " with " + background.description +
+                            (runtimeConfig ? " and runtime config" : ""), () -> {
+                        StubClasses.configure(background.configured, background.fastStartup);
+                        byte[] patched = Patcher.transform(original, adapter, runtimeConfig);
+                        StringWriter errors = new StringWriter();
+                        assertTrue(Patcher.verify(patched, loader, new PrintWriter(errors)), errors::toString);
+                        Class.forName(className.replace('/', '.'), true, new PatchedLoader(loader, className, patched));
+                    }));
+                }
+            }
+        });
+        return tests;
+    }
+
+    @TestFactory
+    List<DynamicTest> backgroundRulesFire() throws IOException {
+        byte[] original = StubClasses.read("wsGUI/wsDisplayGUI");
+        AdapterRegistry.Factory adapter = AdapterRegistry.get("wsGUI/wsDisplayGUI");
+
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Background background : Background.values()) {
+            tests.add(dynamicTest(background.rule + " with " + background.description, () -> {
+                StubClasses.configure(background.configured, background.fastStartup);
+                long before = RuleSet.stats().getOrDefault(background.rule, 0L);
+                Patcher.transform(original, adapter, false);
+                assertEquals(before + 1, (long) RuleSet.stats().get(background.rule));
+            }));
+        }
+        return tests;
+    }
+
+    @TestFactory
+    List<DynamicTest> callRulesFire() {
+        String[][] rules = {{"wsGUI/IOServer", "split"}, {"wsGUI/IOServer", "autoflush"},
+                {"wsGUI/IOServer", "socket-input"}, {"wsGUI/IOServer", "message-received"},
+                {"modules/LedMatrix", "matrix-repaint"}, {"modules/LedMatrix", "matrix-dot"},
+                {"modules/SegmentDisplayModule", "segment-fillPolygon"}, {"modules/SegmentDisplayModule", "segment-fillOval"}};
+
+        List<DynamicTest> tests = new ArrayList<>();
+        for (String[] rule : rules) {
+            tests.add(dynamicTest(rule[1] + " in " + rule[0], () -> {
+                long before = RuleSet.stats().getOrDefault(rule[1], 0L);
+                Patcher.transform(StubClasses.read(rule[0]), AdapterRegistry.get(rule[0]), false);
+                assertTrue(RuleSet.stats().get(rule[1]) > before, rule[1] + " didn't fire");
+            }));
+        }
+        return tests;
+    }
+
+    @Test
+    void headlessWindowTakesConfiguredConstructors() throws Exception {
+        assertHeadlessPatch(ConfiguredWindow.class, "com/mkempe/wsguiwrapper/HeadlessWindow");
+    }
+
+    @Test
+    void windowHandingItselfOutKeepsJFrame() throws Exception {
+        assertHeadlessPatch(OwningWindow.class, "javax/swing/JFrame");
+    }
+
+    /**
+     * Patches a window for headless mode, checks what it extends then, and
+     * that it verifies and links.
+     */
+    private static void assertHeadlessPatch(Class<?> window, String superName) throws Exception {
+        String className = Type.getInternalName(window);
+        byte[] original;
+        try (InputStream in = window.getResourceAsStream('/' + className + ".class")) {
+            original = Patcher.readAll(in);
+        }
+
+        byte[] patched = Patcher.transform(original, (reader, cv, runtimeConfig) -> HeadlessWindowAdapter.wrap(reader, cv), false);
+        assertEquals(superName, new ClassReader(patched).getSuperName());
+
+        ClassLoader loader = StubClasses.loader();
+        StringWriter errors = new StringWriter();
+        assertTrue(Patcher.verify(patched, loader, new PrintWriter(errors)), errors::toString);
+        Class.forName(window.getName(), true, new PatchedLoader(loader, className, patched));
+    }
+
+    /**
+     * Calls a JFrame constructor HeadlessWindow has an overload for.
+     */
+    static class ConfiguredWindow extends JFrame {
+        ConfiguredWindow(GraphicsConfiguration configuration) {
+            super("Configured", configuration);
+        }
+    }
+
+    /**
+     * Hands itself to a dialog as its owner, which only a real window can be.
+     */
+    static class OwningWindow extends JFrame {
+        OwningWindow() {
+            super("Owner");
+        }
+
+        JDialog dialog() {
+            return new JDialog(this);
+        }
+    }
+
+    /**
+     * The ways the background is patched, each by its own rule.
+     */
+    private enum Background {
+        CONFIGURED("a configured background", true, false, "background"),
+        FAST_STARTUP("fast startup", false, true, "background-original"),
+        ORIGINAL("the original background", false, false, "register-background");
+
+        final String description;
+        final boolean configured;
+        final boolean fastStartup;
+        final String rule;
+
+        Background(String description, boolean configured, boolean fastStartup, String rule) {
+            this.description = description;
+            this.configured = configured;
+            this.fastStartup = fastStartup;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Defines one patched class itself and leaves the rest to its parent.
+     */
+    static class PatchedLoader extends ClassLoader {
+        private final String className;
+        private final byte[] patched;
+
+        PatchedLoader(ClassLoader parent, String className, byte[] patched) {
+            super(parent);
+            this.className = className.replace('/', '.');
+            this.patched = patched;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(className))
+                return super.loadClass(name, resolve);
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null)
+                    c = defineClass(name, patched, 0, patched.length);
+                if (resolve)
+                    resolveClass(c);
+                return c;
+            }
+        }
+    }
+}